@@ -0,0 +1,105 @@
+package com.hmdp.config;
+
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+
+@Configuration
+public class CacheCodecConfig {
+
+    @Bean
+    public CacheCodec cacheCodec(@Value("${hmdp.cache.codec:json}") String codec){
+//        json：与原来的JSONUtil格式一致；binary：店铺、博客使用二进制格式，其他类型仍然是json
+        JsonCacheCodec jsonCacheCodec = new JsonCacheCodec();
+        if (!"binary".equalsIgnoreCase(codec)) {
+            return jsonCacheCodec;
+        }
+        return new BinaryCacheCodec(jsonCacheCodec)
+                .register(Shop.class, SHOP_SCHEMA)
+                .register(Blog.class, BLOG_SCHEMA);
+    }
+
+//    字段顺序一旦上线就不能调整
+    private static final BinaryCacheCodec.Schema<Shop> SHOP_SCHEMA = new BinaryCacheCodec.Schema<Shop>() {
+        @Override
+        public void write(Shop shop, BinaryCacheCodec.Output out) throws IOException {
+            out.writeNullableLong(shop.getId());
+            out.writeNullableString(shop.getName());
+            out.writeNullableLong(shop.getTypeId());
+            out.writeNullableString(shop.getImages());
+            out.writeNullableString(shop.getArea());
+            out.writeNullableString(shop.getAddress());
+            out.writeNullableDouble(shop.getX());
+            out.writeNullableDouble(shop.getY());
+            out.writeNullableLong(shop.getAvgPrice());
+            out.writeNullableInt(shop.getSold());
+            out.writeNullableInt(shop.getComments());
+            out.writeNullableInt(shop.getScore());
+            out.writeNullableString(shop.getOpenHours());
+            out.writeNullableDateTime(shop.getCreateTime());
+            out.writeNullableDateTime(shop.getUpdateTime());
+        }
+
+        @Override
+        public Shop read(BinaryCacheCodec.Input in) throws IOException {
+            return new Shop()
+                    .setId(in.readNullableLong())
+                    .setName(in.readNullableString())
+                    .setTypeId(in.readNullableLong())
+                    .setImages(in.readNullableString())
+                    .setArea(in.readNullableString())
+                    .setAddress(in.readNullableString())
+                    .setX(in.readNullableDouble())
+                    .setY(in.readNullableDouble())
+                    .setAvgPrice(in.readNullableLong())
+                    .setSold(in.readNullableInt())
+                    .setComments(in.readNullableInt())
+                    .setScore(in.readNullableInt())
+                    .setOpenHours(in.readNullableString())
+                    .setCreateTime(in.readNullableDateTime())
+                    .setUpdateTime(in.readNullableDateTime());
+        }
+    };
+
+    private static final BinaryCacheCodec.Schema<Blog> BLOG_SCHEMA = new BinaryCacheCodec.Schema<Blog>() {
+        @Override
+        public void write(Blog blog, BinaryCacheCodec.Output out) throws IOException {
+            out.writeNullableLong(blog.getId());
+            out.writeNullableLong(blog.getShopId());
+            out.writeNullableLong(blog.getUserId());
+            out.writeNullableString(blog.getIcon());
+            out.writeNullableString(blog.getName());
+            out.writeNullableString(blog.getTitle());
+            out.writeNullableString(blog.getImages());
+            out.writeNullableString(blog.getContent());
+            out.writeNullableInt(blog.getLiked());
+            out.writeNullableInt(blog.getComments());
+            out.writeNullableDateTime(blog.getCreateTime());
+            out.writeNullableDateTime(blog.getUpdateTime());
+        }
+
+        @Override
+        public Blog read(BinaryCacheCodec.Input in) throws IOException {
+            return new Blog()
+                    .setId(in.readNullableLong())
+                    .setShopId(in.readNullableLong())
+                    .setUserId(in.readNullableLong())
+                    .setIcon(in.readNullableString())
+                    .setName(in.readNullableString())
+                    .setTitle(in.readNullableString())
+                    .setImages(in.readNullableString())
+                    .setContent(in.readNullableString())
+                    .setLiked(in.readNullableInt())
+                    .setComments(in.readNullableInt())
+                    .setCreateTime(in.readNullableDateTime())
+                    .setUpdateTime(in.readNullableDateTime());
+        }
+    };
+}
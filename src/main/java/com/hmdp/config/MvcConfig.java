@@ -1,18 +1,27 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.LoginSessionCache;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import com.hmdp.utils.SignedTokenService;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.Resource;
+import java.util.Set;
 
 @Configuration
 public class MvcConfig implements WebMvcConfigurer {
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private LoginSessionCache loginSessionCache;
+    @Resource
+    private SignedTokenService signedTokenService;
+//    可以访问/admin/**运维接口的用户id，默认没有
+    @Value("${hmdp.admin.user-ids:}")
+    private Set<Long> adminUserIds;
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         registry.addInterceptor(new LoginInterceptor())
@@ -25,7 +34,9 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/user/login"
 //                        order使为了保证注册拦截器的执行顺序
                 ).order(1);
+//        运维接口，登录后还要是管理员
+        registry.addInterceptor(new AdminInterceptor(adminUserIds)).addPathPatterns("/admin/**").order(2);
 //        token的拦截器
-        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
+        registry.addInterceptor(new RefreshTokenInterceptor(loginSessionCache, signedTokenService)).addPathPatterns("/**").order(0);
     }
 }
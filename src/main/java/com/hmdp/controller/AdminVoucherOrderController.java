@@ -0,0 +1,41 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IVoucherOrderService;
+import org.springframework.web.bind.annotation.*;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ *  秒杀订单死信队列的运维接口，只有 hmdp.admin.user-ids 中的用户可以访问
+ * </p>
+ */
+@RestController
+@RequestMapping("/admin/voucher-order")
+public class AdminVoucherOrderController {
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    /**
+     * 查询死信队列中的订单消息
+     * @param count 最多返回的条数
+     * @return 死信消息列表
+     */
+    @GetMapping("dead-letter")
+    public Result queryDeadLetterOrders(@RequestParam(value = "count", defaultValue = "20") Integer count) {
+        return voucherOrderService.queryDeadLetterOrders(count);
+    }
+
+    /**
+     * 重新投递死信消息
+     * @param deadLetterId 死信消息id
+     * @return 重新投递后的消息id
+     */
+    @PostMapping("dead-letter/replay/{id}")
+    public Result replayDeadLetterOrder(@PathVariable("id") String deadLetterId) {
+        return voucherOrderService.replayDeadLetterOrder(deadLetterId);
+    }
+}
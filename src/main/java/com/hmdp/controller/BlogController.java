@@ -5,9 +5,8 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
-import com.hmdp.entity.User;
 import com.hmdp.service.IBlogService;
-import com.hmdp.service.IUserService;
+import com.hmdp.utils.BlogFeed;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.web.bind.annotation.*;
@@ -29,18 +28,17 @@ public class BlogController {
 
     @Resource
     private IBlogService blogService;
+
     @Resource
-    private IUserService userService;
+    private BlogFeed blogFeed;
 
     @PostMapping
     public Result saveBlog(@RequestBody Blog blog) {
         // 获取登录用户
         UserDTO user = UserHolder.getUser();
         blog.setUserId(user.getId());
-        // 保存探店博文
-        blogService.save(blog);
-        // 返回id
-        return Result.ok(blog.getId());
+        // 保存探店博文并返回id
+        return blogService.saveBlog(blog);
     }
 
     @PutMapping("/like/{id}")
@@ -63,20 +61,25 @@ public class BlogController {
 
     @GetMapping("/hot")
     public Result queryHotBlog(@RequestParam(value = "current", defaultValue = "1") Integer current) {
-        // 根据用户查询
-        Page<Blog> page = blogService.query()
-                .orderByDesc("liked")
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 获取当前页数据
-        List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog ->{
-            Long userId = blog.getUserId();
-            User user = userService.getById(userId);
-            blog.setName(user.getNickName());
-            blog.setIcon(user.getIcon());
-        });
-        return Result.ok(records);
+        // 按点赞数分页查询，博客和作者都批量查询
+        return blogService.queryHotBlog(current);
+    }
+
+    @GetMapping("/of/follow")
+    public Result queryBlogOfFollow(
+            @RequestParam("lastId") Long max,
+            @RequestParam(value = "offset", defaultValue = "0") Integer offset) {
+        // 滚动分页查询收件箱，返回下一页的游标
+        return blogService.queryBlogOfFollow(max, offset);
+    }
+
+    /**
+     * 查询关注推送的统计信息
+     * @return 推送的博客数、写入的收件箱数和耗时，写入发件箱的博客数，以及只读收件箱和需要归并的读取次数
+     */
+    @GetMapping("/feed/stats")
+    public Result queryFeedStats() {
+        return Result.ok(blogFeed.getStats());
     }
 
     @GetMapping("/{id}")
@@ -1,15 +1,16 @@
 package com.hmdp.controller;
 
 
-import cn.hutool.core.util.StrUtil;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
-import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.ShopGridIndex;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * <p>
@@ -26,6 +27,12 @@ public class ShopController {
     @Resource
     public IShopService shopService;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private ShopGridIndex shopGridIndex;
+
     /**
      * 根据id查询商铺信息
      * @param id 商铺id
@@ -44,9 +51,7 @@ public class ShopController {
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
         // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -64,19 +69,19 @@ public class ShopController {
      * 根据商铺类型分页查询商铺信息
      * @param typeId 商铺类型
      * @param current 页码
+     * @param x 经度，和纬度都传入时按距离排序
+     * @param y 纬度
      * @return 商铺列表
      */
     @GetMapping("/of/type")
     public Result queryShopByType(
             @RequestParam("typeId") Integer typeId,
-            @RequestParam(value = "current", defaultValue = "1") Integer current
+            @RequestParam(value = "current", defaultValue = "1") Integer current,
+            @RequestParam(value = "x", required = false) Double x,
+            @RequestParam(value = "y", required = false) Double y
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .eq("type_id", typeId)
-                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        // 根据类型分页查询，有坐标时按距离排序
+        return shopService.queryShopByType(typeId, current, x, y);
     }
 
     /**
@@ -90,11 +95,29 @@ public class ShopController {
             @RequestParam(value = "name", required = false) String name,
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .like(StrUtil.isNotBlank(name), "name", name)
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        // 根据名称分页查询
+        return shopService.queryShopByName(name, current);
+    }
+
+    /**
+     * 查询缓存的统计信息
+     * @return 一级缓存的条数、命中、未命中、淘汰次数，布隆过滤器的内存占用，以及缓存重建的排队与拒绝次数
+     */
+    @GetMapping("/cache/stats")
+    public Result queryCacheStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("nearCache", cacheClient.getNearCacheStats());
+        stats.put("bloomFilter", cacheClient.getBloomFilterStats());
+        stats.put("rebuild", cacheClient.getRebuildStats());
+        return Result.ok(stats);
+    }
+
+    /**
+     * 查询本地网格索引的统计信息
+     * @return 索引的店铺数、待合并的修改数、构建耗时，以及查询次数、平均耗时和平均扫描的店铺数
+     */
+    @GetMapping("/grid/stats")
+    public Result queryGridStats() {
+        return Result.ok(shopGridIndex.getStats());
     }
 }
@@ -58,9 +58,9 @@ public class UserController {
      * @return 无
      */
     @PostMapping("/logout")
-    public Result logout(){
-        // TODO 实现登出功能
-        return Result.fail("功能未完成");
+    public Result logout(@RequestHeader(value = "authorization", required = false) String token){
+        // 删除token并清除所有节点的本地会话缓存
+        return userService.logout(token);
     }
 
     @GetMapping("/me")
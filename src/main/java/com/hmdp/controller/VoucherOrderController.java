@@ -3,12 +3,10 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>
@@ -24,8 +22,31 @@ public class VoucherOrderController {
 
     @Resource
     private IVoucherOrderService voucherOrderService;
+    /**
+     * 秒杀下单，Redis返回结果前不占用Tomcat线程
+     * @return 订单id，订单由消息队列异步创建，结果通过 /voucher-order/status/{orderId} 查询
+     */
     @PostMapping("seckill/{id}")
-    public Result seckillVoucher(@PathVariable("id") Long voucherId) {
-        return voucherOrderService.seckillVoucher(voucherId);
+    public CompletableFuture<Result> seckillVoucher(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.seckillVoucherAsync(voucherId);
+    }
+
+    /**
+     * 查询订单处理状态
+     * @param orderId 秒杀返回的订单id
+     * @return 订单状态：QUEUED、CREATED、FAILED
+     */
+    @GetMapping("status/{orderId}")
+    public Result queryOrderStatus(@PathVariable("orderId") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
+
+    /**
+     * 查询订单消息队列的消费吞吐量与积压情况
+     * @return 消费者数量、已消费/已创建订单数、pending数量、积压时间等
+     */
+    @GetMapping("metrics")
+    public Result queryOrderStreamMetrics() {
+        return voucherOrderService.queryOrderStreamMetrics();
     }
 }
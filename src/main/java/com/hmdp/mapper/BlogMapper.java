@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Map;
 
 /**
  * <p>
@@ -13,4 +16,15 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface BlogMapper extends BaseMapper<Blog> {
 
+    /**
+     * 批量累加点赞数，一条 UPDATE ... CASE 语句，结果小于0时记为0
+     * @param deltas 博客id -> 点赞数增量
+     */
+    int addLikedBatch(@Param("deltas") Map<Long, Long> deltas);
+
+    /**
+     * 批量设置点赞数
+     * @param likes 博客id -> 点赞数
+     */
+    int updateLikedBatch(@Param("likes") Map<Long, Long> likes);
 }
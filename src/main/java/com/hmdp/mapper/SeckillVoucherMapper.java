@@ -2,6 +2,7 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
 
 /**
  * <p>
@@ -13,4 +14,11 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface SeckillVoucherMapper extends BaseMapper<SeckillVoucher> {
 
+    /**
+     * 按数量扣减库存，库存不足时不扣减
+     * @param voucherId 优惠券id
+     * @param count 扣减数量
+     * @return 更新的行数，0表示库存不足
+     */
+    int deductStock(@Param("voucherId") Long voucherId, @Param("count") int count);
 }
@@ -2,6 +2,10 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.UserInfo;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * <p>
@@ -13,4 +17,32 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface UserInfoMapper extends BaseMapper<UserInfo> {
 
+    /**
+     * 还没有详情的用户先插入一行默认值，已存在的忽略
+     */
+    int insertIgnoreBatch(@Param("userIds") Collection<Long> userIds);
+
+    /**
+     * 批量累加粉丝数，一条 UPDATE ... CASE 语句，结果小于0时记为0
+     * @param deltas 用户id -> 粉丝数增量
+     */
+    int addFansBatch(@Param("deltas") Map<Long, Long> deltas);
+
+    /**
+     * 批量累加关注数
+     * @param deltas 用户id -> 关注数增量
+     */
+    int addFolloweeBatch(@Param("deltas") Map<Long, Long> deltas);
+
+    /**
+     * 按tb_follow中被关注的记录数重新设置粉丝数
+     * @param pending 用户id -> 还没有写入的粉丝数增量，从记录数中减去
+     */
+    int reconcileFansBatch(@Param("pending") Map<Long, Long> pending);
+
+    /**
+     * 按tb_follow中关注的记录数重新设置关注数
+     * @param pending 用户id -> 还没有写入的关注数增量，从记录数中减去
+     */
+    int reconcileFolloweeBatch(@Param("pending") Map<Long, Long> pending);
 }
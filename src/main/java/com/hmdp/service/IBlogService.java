@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -17,4 +19,20 @@ public interface IBlogService extends IService<Blog> {
     Result queryBlogById(Long id);
 
     Result likeBlog(Long id);
+
+    Result saveBlog(Blog blog);
+
+    Result queryHotBlog(Integer current);
+
+    /**
+     * 滚动分页查询关注的人发布的博客
+     * @param max 上一页最小的时间，第一页传当前时间
+     * @param offset 上一页中与最小时间相同的条数
+     */
+    Result queryBlogOfFollow(Long max, Integer offset);
+
+    /**
+     * 一次管道查询设置当前登录用户对这些博客的点赞状态，未登录时都为未点赞
+     */
+    void decorateLikes(List<Blog> blogs);
 }
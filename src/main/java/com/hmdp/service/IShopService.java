@@ -16,4 +16,15 @@ public interface IShopService extends IService<Shop> {
     Result queryById(Long id);
 
     Result update(Shop shop);
+
+    Result saveShop(Shop shop);
+
+    Result queryShopByType(Integer typeId, Integer current);
+
+    /**
+     * 按距离分页查询附近的店铺，x、y为空时按类型分页
+     */
+    Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+
+    Result queryShopByName(String name, Integer current);
 }
@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * <p>
  *  服务类
@@ -15,5 +18,45 @@ import com.baomidou.mybatisplus.extension.service.IService;
 public interface IVoucherOrderService extends IService<VoucherOrder> {
     Result seckillVoucher(Long voucherId);
 
+    /**
+     * 异步秒杀：Lua脚本判断完购买资格后立即返回订单id，订单由消息队列的消费者异步创建
+     */
+    CompletableFuture<Result> seckillVoucherAsync(Long voucherId);
+
+    /**
+     * 清除所有节点上该秒杀券的售罄标记和缓存的秒杀时间，补充库存或修改秒杀时间后调用
+     */
+    void resetSeckillVoucher(Long voucherId);
+
+    /**
+     * 查询订单的处理状态：QUEUED 排队中，CREATED 已创建，FAILED 创建失败
+     */
+    Result queryOrderStatus(Long orderId);
+
     Result createVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * 在一个事务中批量创建订单：批内去重、按优惠券分组扣减库存、多行插入
+     * @param voucherOrders 从消息队列中读取的一批订单
+     * @return 因数据库库存不足没有创建的订单id
+     */
+    List<Long> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 查询订单消息队列的消费吞吐量与积压情况
+     */
+    Result queryOrderStreamMetrics();
+
+    /**
+     * 查询死信队列中的订单消息
+     * @param count 最多返回的条数
+     */
+    Result queryDeadLetterOrders(Integer count);
+
+    /**
+     * 将死信消息重新投递到订单消息队列
+     * @param deadLetterId 死信消息id
+     * @return 新消息id
+     */
+    Result replayDeadLetterOrder(String deadLetterId);
 }
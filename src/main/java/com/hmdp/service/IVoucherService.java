@@ -17,4 +17,9 @@ public interface IVoucherService extends IService<Voucher> {
     Result queryVoucherOfShop(Long shopId);
 
     void addSeckillVoucher(Voucher voucher);
+
+    /**
+     * 补充秒杀库存，同时清除所有节点的售罄标记
+     */
+    Result addSeckillStock(Long voucherId, Integer count);
 }
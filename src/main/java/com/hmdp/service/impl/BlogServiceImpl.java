@@ -1,18 +1,46 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ScrollResult;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BlogFeed;
+import com.hmdp.utils.BlogHotRanking;
+import com.hmdp.utils.BlogLikeCounter;
+import com.hmdp.utils.BloomFilter;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.LocalCache;
+import com.hmdp.utils.RedisScriptRegistry;
+import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisPipelineException;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.BLOOM_BLOG_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_TTL;
 
 /**
  * <p>
@@ -22,61 +50,181 @@ import javax.annotation.Resource;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
     @Resource
     private IUserService userService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+    @Resource
+    private BlogLikeCounter blogLikeCounter;
+    @Resource
+    private BlogHotRanking blogHotRanking;
+    @Resource
+    private BlogFeed blogFeed;
+
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double bloomFpp;
+    @Value("${hmdp.bloom.redis-mirror:false}")
+    private boolean bloomRedisMirror;
+//    热门博客的前几页渲染好后缓存在本地，点赞状态每次请求单独设置
+    @Value("${hmdp.blog.hot.cached-pages:3}")
+    private int hotCachedPages;
+    @Value("${hmdp.blog.hot.page-cache-ttl-seconds:5}")
+    private long hotPageCacheTtlSeconds;
+
+    private LocalCache<List<Blog>> hotPageCache;
+
+    @PostConstruct
+    private void init(){
+//        按现有博客数量的2倍预留容量，从tb_blog分批读取id构建布隆过滤器
+        BloomFilter bloomFilter = new BloomFilter(Math.max(count() * 2L, 10000L), bloomFpp,
+                bloomRedisMirror ? BLOOM_BLOG_KEY : null, stringRedisTemplate);
+        bloomFilter.loadIds(this);
+        cacheClient.registerBloomFilter(CACHE_BLOG_KEY, bloomFilter);
+        hotPageCache = new LocalCache<>(Math.max(hotCachedPages, 1), hotPageCacheTtlSeconds, TimeUnit.SECONDS);
+        log.info("博客布隆过滤器构建完成，位数:{}，哈希函数个数:{}，内存:{}字节",
+                bloomFilter.bitSize(), bloomFilter.hashCount(), bloomFilter.memoryBytes());
+    }
+
+    @Override
+    public Result saveBlog(Blog blog) {
+//        保存探店博文
+        save(blog);
+//        新博客加入布隆过滤器
+        cacheClient.addToBloomFilter(CACHE_BLOG_KEY, blog.getId());
+        blogHotRanking.add(blog.getId());
+//        后台推送到粉丝的收件箱
+        blogFeed.publish(blog.getUserId(), blog.getId());
+        return Result.ok(blog.getId());
+    }
+
+    @Override
+    public Result queryHotBlog(Integer current) {
+        boolean cacheable = current <= hotCachedPages;
+        List<Blog> page = cacheable ? hotPageCache.get(current.toString()) : null;
+        if (page == null) {
+            page = renderHotPage(current);
+            if (cacheable) {
+                hotPageCache.put(current.toString(), page);
+            }
+        }
+//        缓存的页面所有请求共享，拷贝后再设置当前用户的点赞状态
+        List<Blog> blogs = page.stream().map(blog -> BeanUtil.copyProperties(blog, Blog.class)).collect(Collectors.toList());
+        decorateLikes(blogs);
+        return Result.ok(blogs);
+    }
+
+    @Override
+    public Result queryBlogOfFollow(Long max, Integer offset) {
+//        1.滚动分页读取当前用户的收件箱
+        Long userId = UserHolder.getUser().getId();
+        ScrollResult result = blogFeed.read(userId, max, offset, SystemConstants.MAX_PAGE_SIZE);
+        @SuppressWarnings("unchecked")
+        List<Long> ids = (List<Long>) result.getList();
+//        2.按收件箱的顺序批量查询博客和作者，已删除的博客会被跳过
+        List<Blog> blogs = queryBlogBatch(ids);
+        decorateLikes(blogs);
+        result.setList(blogs);
+        return Result.ok(result);
+    }
+
+    private List<Blog> renderHotPage(Integer current) {
+//        从热门排行中分页查询id
+        return queryBlogBatch(blogHotRanking.pageIds(current, SystemConstants.MAX_PAGE_SIZE));
+    }
+
+    private List<Blog> queryBlogBatch(List<Long> ids) {
+//        1.按id批量查询缓存，保持传入的顺序
+        List<Blog> blogs = cacheClient.queryBatch(CACHE_BLOG_KEY, ids, Blog.class, this::listByIds, Blog::getId, CACHE_BLOG_TTL, TimeUnit.MINUTES);
+//        2.一次查询所有作者
+        Set<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toSet());
+        Map<Long, User> users = userIds.isEmpty() ? Collections.<Long, User>emptyMap()
+                : userService.listByIds(userIds).stream().collect(Collectors.toMap(User::getId, Function.identity()));
+        blogs.forEach(blog -> {
+            User user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        });
+        return blogs;
+    }
+
     @Override
     public Result queryBlogById(Long id) {
+//        布隆过滤器判断一定不存在的id直接返回，不查数据库
+        if (!cacheClient.mightContain(CACHE_BLOG_KEY, id)){
+            return Result.fail("博客不存在!");
+        }
 //        1.查询blog
         Blog blog = getById(id);
         if (blog == null){
             return Result.fail("博客不存在!");
         }
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+        User user = userService.getById(blog.getUserId());
+        if (user != null) {
+            blog.setName(user.getNickName());
+            blog.setIcon(user.getIcon());
+        }
 //        查询是否被点赞
-        isBlogLiked(blog);
-        return Result.ok();
+        decorateLikes(Collections.singletonList(blog));
+        return Result.ok(blog);
     }
 
-    private void isBlogLiked(Blog blog) {
-//        获取登录用户
-        Long userId = UserHolder.getUser().getId();
-//        判断是否已点赞
-        String key = "blog:liked:"+blog.getId();
-        Boolean isMember = stringRedisTemplate.opsForSet().isMember(key, userId.toString());
-        blog.setIsLike(BooleanUtil.isTrue(isMember));
+    @Override
+    public void decorateLikes(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+//        未登录时都按未点赞处理
+        UserDTO user = UserHolder.getUser();
+        if (user == null) {
+            blogs.forEach(blog -> blog.setIsLike(false));
+            return;
+        }
+        String userId = user.getId().toString();
+        List<Object> scores;
+        try {
+//            ZSCORE blog:liked:{id} userId，整页博客只需要一次往返
+            scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                for (Blog blog : blogs) {
+                    stringConnection.zScore(BLOG_LIKED_KEY + blog.getId(), userId);
+                }
+                return null;
+            });
+        } catch (RedisPipelineException e) {
+//            还没有转换的旧SET会返回WRONGTYPE，按未点赞处理，下一次点赞时由脚本转换
+            scores = e.getPipelineResult();
+        }
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(i < scores.size() && scores.get(i) instanceof Double);
+        }
     }
 
     @Override
     public Result likeBlog(Long id) {
+        if (!cacheClient.mightContain(CACHE_BLOG_KEY, id)){
+            return Result.fail("博客不存在!");
+        }
 //        获取登录用户
         Long userId = UserHolder.getUser().getId();
-//        判断是否已点赞
-        String key = "blog:liked:"+id;
-        Boolean isMember = stringRedisTemplate.opsForSet().isMember(key, userId.toString());
-        if (BooleanUtil.isFalse(isMember)){
-//        如果未点赞，可以点赞
-//        数据库点赞数+1
-            boolean isSucess = update().setSql("liked = liked + 1").eq("id", id).update();
-//        保存用户到Redis的set集合
-            if (isSucess){
-                stringRedisTemplate.opsForSet().add(key,userId.toString());
-            }
-        } else {
-//        如果已点赞
-//        数据库点赞数-1
-       boolean isSucess = update().setSql("liked = liked - 1").eq("id", id).update();
-//       将用户数据移除
-            if (isSucess){
-                stringRedisTemplate.opsForSet().remove(key,userId.toString());
-            }
-        }
-        return null;
+        String key = BLOG_LIKED_KEY + id;
+//        一次脚本调用完成判断和切换点赞状态，返回切换后的状态
+        long now = System.currentTimeMillis();
+        Long result = redisScriptRegistry.execute("like", Collections.singletonList(RedisScriptRegistry.arg(key)),
+                RedisScriptRegistry.arg(userId), RedisScriptRegistry.arg(now));
+        boolean liked = result != null && result == 1L;
+//        点赞数的增量先记在Redis中，由后台批量写入数据库，写入后再删除博客缓存
+        blogLikeCounter.increment(id, liked ? 1 : -1);
+//        取消点赞时脚本返回原来点赞时间的相反数，扣除当时加到排行中的权重
+        blogHotRanking.onLike(id, liked, liked ? now : (result == null ? 0 : -result));
+        return Result.ok(liked);
     }
 }
@@ -1,11 +1,38 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Follow;
 import com.hmdp.mapper.FollowMapper;
 import com.hmdp.service.IFollowService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.FollowCounter;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.RedisScriptRegistry;
+import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.FOLLOWS_KEY;
+import static com.hmdp.utils.RedisConstants.FOLLOWS_LOADED_KEY;
+
 /**
  * <p>
  *  服务实现类
@@ -14,7 +41,132 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> implements IFollowService {
+    private static final int LOAD_BATCH_SIZE = 1000;
+    private static final String LOAD_LOCK_NAME = "follows:load";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+    @Resource
+    private IUserService userService;
+    @Resource
+    private FollowCounter followCounter;
+
+    @PostConstruct
+    private void init(){
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(FOLLOWS_LOADED_KEY))) {
+            return;
+        }
+//        多个节点同时启动时只由一个节点导入
+        ILock lock = new SimpleRedisLock(LOAD_LOCK_NAME, stringRedisTemplate, redisScriptRegistry);
+        if (!lock.tryLock(300L)) {
+            return;
+        }
+        try {
+            loadFollows();
+        } finally {
+            lock.unLock();
+        }
+    }
+
+//    按id分批读取tb_follow，每批一次管道SADD到关注者的 follows:{userId}
+    private void loadFollows(){
+        long lastId = 0;
+        long total = 0;
+        while (true) {
+            List<Follow> follows = list(new QueryWrapper<Follow>()
+                    .select("id", "user_id", "follow_user_id").gt("id", lastId).orderByAsc("id").last("LIMIT " + LOAD_BATCH_SIZE));
+            if (!follows.isEmpty()) {
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                    for (Follow follow : follows) {
+                        stringConnection.sAdd(FOLLOWS_KEY + follow.getUserId(), follow.getFollowUserId().toString());
+                    }
+                    return null;
+                });
+                lastId = follows.get(follows.size() - 1).getId();
+                total += follows.size();
+            }
+            if (follows.size() < LOAD_BATCH_SIZE) {
+                break;
+            }
+        }
+        stringRedisTemplate.opsForValue().set(FOLLOWS_LOADED_KEY, String.valueOf(System.currentTimeMillis()));
+        log.info("关注关系导入完成，关注数:{}", total);
+    }
+
+    @Override
+    public Result follow(Long followUserId, Boolean isFollow) {
+        Long userId = UserHolder.getUser().getId();
+        if (userId.equals(followUserId)) {
+            return Result.fail("不能关注自己!");
+        }
+        String key = FOLLOWS_KEY + userId;
+        if (Boolean.TRUE.equals(isFollow)) {
+//            1.关注，已经关注时直接返回；并发的重复请求由(user_id, follow_user_id)唯一索引保证只插入一次，
+//            已有库需要先执行 db/migration_uk_user_follow.sql
+            if (count(new QueryWrapper<Follow>().eq("user_id", userId).eq("follow_user_id", followUserId)) > 0) {
+                return Result.ok();
+            }
+            Follow follow = new Follow().setUserId(userId).setFollowUserId(followUserId);
+            try {
+                save(follow);
+            } catch (DuplicateKeyException e) {
+                return Result.ok();
+            }
+            stringRedisTemplate.opsForSet().add(key, followUserId.toString());
+            followCounter.increment(userId, followUserId, 1);
+        } else {
+//            2.取关，只有真正删除了记录才更新集合和计数
+            boolean removed = remove(new QueryWrapper<Follow>().eq("user_id", userId).eq("follow_user_id", followUserId));
+            if (removed) {
+                stringRedisTemplate.opsForSet().remove(key, followUserId.toString());
+                followCounter.increment(userId, followUserId, -1);
+            }
+        }
+        return Result.ok();
+    }
+
+    @Override
+    public Result isFollow(Long followUserId) {
+        Long userId = UserHolder.getUser().getId();
+        return Result.ok(Boolean.TRUE.equals(
+                stringRedisTemplate.opsForSet().isMember(FOLLOWS_KEY + userId, followUserId.toString())));
+    }
+
+    @Override
+    public Result isFollowBatch(List<Long> followUserIds) {
+        if (followUserIds == null || followUserIds.isEmpty()) {
+            return Result.ok(Collections.emptyMap());
+        }
+        Long userId = UserHolder.getUser().getId();
+//        SMISMEMBER一次判断整页用户
+        Map<Object, Boolean> members = stringRedisTemplate.opsForSet()
+                .isMember(FOLLOWS_KEY + userId, followUserIds.stream().map(String::valueOf).toArray());
+        Map<Long, Boolean> result = new LinkedHashMap<>();
+        for (Long followUserId : followUserIds) {
+            result.put(followUserId, members != null && Boolean.TRUE.equals(members.get(followUserId.toString())));
+        }
+        return Result.ok(result);
+    }
 
+    @Override
+    public Result followCommons(Long id) {
+        Long userId = UserHolder.getUser().getId();
+//        1.求两个用户关注集合的交集
+        Set<String> intersect = stringRedisTemplate.opsForSet().intersect(FOLLOWS_KEY + userId, FOLLOWS_KEY + id);
+        if (intersect == null || intersect.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+//        2.一次查询所有用户
+        List<Long> ids = intersect.stream().map(Long::valueOf).collect(Collectors.toList());
+        List<UserDTO> users = userService.listByIds(ids).stream()
+                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                .collect(Collectors.toList());
+        return Result.ok(users);
+    }
 }
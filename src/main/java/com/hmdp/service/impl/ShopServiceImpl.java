@@ -1,26 +1,37 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.BloomFilter;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisData;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopGridIndex;
+import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -32,6 +43,7 @@ import static com.hmdp.utils.RedisConstants.*;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
@@ -41,6 +53,43 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    @Resource
+    private ShopGridIndex shopGridIndex;
+
+//    热点店铺的一级缓存配置
+    @Value("${hmdp.cache.local.shop.max-size:1000}")
+    private int shopNearCacheSize;
+    @Value("${hmdp.cache.local.shop.ttl-seconds:10}")
+    private long shopNearCacheTtl;
+//    布隆过滤器配置：误判率，以及是否镜像到Redis供多个节点共享
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double bloomFpp;
+    @Value("${hmdp.bloom.redis-mirror:false}")
+    private boolean bloomRedisMirror;
+//    附近店铺的搜索半径
+    @Value("${hmdp.shop.geo.radius-meters:5000}")
+    private double geoRadiusMeters;
+//    按距离分页最多能翻到的页码，GEOSEARCH和网格索引每次都要取出 页码×每页条数 个店铺
+    @Value("${hmdp.shop.geo.max-page:100}")
+    private int geoMaxPage;
+
+    @PostConstruct
+    private void init(){
+        cacheClient.registerNearCache(CACHE_SHOP_KEY, shopNearCacheSize, shopNearCacheTtl, TimeUnit.SECONDS);
+//        单条查询使用逻辑过期，列表批量写回时也写入逻辑过期时间
+        cacheClient.registerLogicalExpire(CACHE_SHOP_KEY);
+//        按现有店铺数量的2倍预留容量，从tb_shop分批读取id构建布隆过滤器
+        BloomFilter bloomFilter = new BloomFilter(Math.max(count() * 2L, 10000L), bloomFpp,
+                bloomRedisMirror ? BLOOM_SHOP_KEY : null, stringRedisTemplate);
+        bloomFilter.loadIds(this);
+        cacheClient.registerBloomFilter(CACHE_SHOP_KEY, bloomFilter);
+        log.info("店铺布隆过滤器构建完成，位数:{}，哈希函数个数:{}，内存:{}字节",
+                bloomFilter.bitSize(), bloomFilter.hashCount(), bloomFilter.memoryBytes());
+    }
+
     @Override
     public Result queryById(Long id) {
 //        解决缓存穿透的代码
@@ -92,59 +141,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return shop;
     }*/
 
-//    用互斥锁解决缓存击穿
+//    用互斥锁解决缓存击穿，并发请求的合并与互斥锁已在CacheClient.queryWithMutex中封装
     public Shop queryWithMutex(Long id){
-        //        1.从redis中查询商铺id
-        String shopJson = stringRedisTemplate.opsForValue().get(CACHE_SHOP_KEY + id);
-//        2. 判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            //        3.存在，直接返回
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-//       3. 为防止缓存穿透，当命中后查看是否为空值
-        if (shopJson != null){
-//            返回错误信息
-            return null;
-        }
-//        4.实现缓存重建
-//        4.1 获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        Shop shop = null;
-        try {
-            boolean isLock = tryLock(lockKey);
-//        4.2 判断是否获取成功
-            if (!isLock){
-                //        4.3 失败就重试并休眠
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-//        获取锁后再次查询redis中是否有值
-            shopJson = stringRedisTemplate.opsForValue().get(CACHE_SHOP_KEY + id);
-            if (StrUtil.isNotBlank(shopJson)) {
-                //        3.存在，直接返回
-                shop = JSONUtil.toBean(shopJson, Shop.class);
-                return shop;
-            }
-//        4.4 成功，根据id查询数据库
-            shop = getById(id);
-//        5.数据库中不存在，错误
-            if (shop == null){
-    //            为防止redis缓存穿透问题，当查询的数据在数据库不存在时，将空值写入redis中，并返回错误信息
-                stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
-    //            返回错误信息
-                return null;
-            }
-//        6.存在，写入redis
-            stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id,JSONUtil.toJsonStr(shop),CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            //      7. 释放互斥锁
-            unLock(lockKey);
-        }
-        //       8. 返回
-        return shop;
+        return cacheClient.queryWithMutex(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
 //    逻辑过期解决缓存击穿
@@ -208,21 +207,6 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return shop;
     }*/
 
-//    创建线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
-//    添加互斥锁
-    private boolean tryLock(String key){
-//        使用的是setnx命令，即如果key存在则创建失败，也修改失败，如果不存在则创建成功
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-//        由于返回的是对象型，不是基本类型，如果直接返回的话会发生拆包可能会出现空指针，所以使用工具类进行处理
-        return BooleanUtil.isTrue(flag);
-    }
-//    删除锁
-    private void unLock(String key){
-        stringRedisTemplate.delete(key);
-    }
-
 //    设置逻辑过期时间，已在CacheClient中封装为setWithLogicalExpire
 /*    public void saveShop2Redis(Long id,Long expireSeconds){
 //        1. 查看店铺数据
@@ -234,6 +218,76 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 //        3. 写入redis
         stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id,JSONUtil.toJsonStr(redisData));
     }*/
+    @Override
+    public Result saveShop(Shop shop) {
+//        写入数据库
+        save(shop);
+//        新店铺加入布隆过滤器，否则会被当作不存在的数据拦截
+        cacheClient.addToBloomFilter(CACHE_SHOP_KEY, shop.getId());
+//        加入对应类型的GEO集合
+        shopGeoIndex.save(null, shop);
+        shopGridIndex.publish(shop);
+//        返回店铺id
+        return Result.ok(shop.getId());
+    }
+
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current, Double x, Double y) {
+//        没有坐标时按原来的方式分页
+        if (x == null || y == null) {
+            return queryShopByType(typeId, current);
+        }
+        if (current == null || current < 1) {
+            return Result.fail("页码必须大于0!");
+        }
+        if (current > geoMaxPage) {
+            return Result.ok(Collections.emptyList());
+        }
+//        1.按距离分页查询店铺id和距离，开启了本地网格索引时不访问Redis GEO
+        int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        Map<Long, Double> distances = shopGridIndex.isEnabled()
+                ? shopGridIndex.search(typeId.longValue(), x, y, geoRadiusMeters, from, SystemConstants.DEFAULT_PAGE_SIZE)
+                : shopGeoIndex.search(typeId.longValue(), x, y, geoRadiusMeters, from, SystemConstants.DEFAULT_PAGE_SIZE);
+        if (distances.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+//        2.按id批量查询缓存，一级缓存中的对象是共享的，拷贝后再设置距离
+        List<Shop> shops = cacheClient.queryBatch(CACHE_SHOP_KEY, new ArrayList<>(distances.keySet()), Shop.class,
+                this::listByIds, Shop::getId, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        List<Shop> result = new ArrayList<>(shops.size());
+        for (Shop shop : shops) {
+            Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+            copy.setDistance(distances.get(shop.getId()));
+            result.add(copy);
+        }
+        return Result.ok(result);
+    }
+
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current) {
+//        1.分页只查询id，走type_id索引
+        Page<Shop> page = query()
+                .select("id")
+                .eq("type_id", typeId)
+                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
+//        2.按id批量查询缓存
+        return Result.ok(queryShopBatch(page.getRecords()));
+    }
+
+    @Override
+    public Result queryShopByName(String name, Integer current) {
+        Page<Shop> page = query()
+                .select("id")
+                .like(StrUtil.isNotBlank(name), "name", name)
+                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+        return Result.ok(queryShopBatch(page.getRecords()));
+    }
+
+    private List<Shop> queryShopBatch(List<Shop> records) {
+        List<Long> ids = records.stream().map(Shop::getId).collect(Collectors.toList());
+        return cacheClient.queryBatch(CACHE_SHOP_KEY, ids, Shop.class, this::listByIds, Shop::getId, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+    }
+
     @Override
     @Transactional
 //    通过事务控制方法原子性，如果数据库更新失败就回滚
@@ -242,10 +296,18 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if (id == null){
             return Result.fail("店铺id不能为空!");
         }
+        Shop previous = getById(id);
+        if (previous == null) {
+            return Result.fail("店铺不存在!");
+        }
 //        1.更新数据库
         updateById(shop);
-//        2.删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+//        坐标或类型可能变化，按更新后的数据维护GEO集合
+        Shop updated = getById(id);
+        shopGeoIndex.save(previous, updated);
+        shopGridIndex.publish(updated);
+//        2.删除缓存，同时通知所有节点清除一级缓存
+        cacheClient.delete(CACHE_SHOP_KEY + id);
         return Result.ok();
     }
 }
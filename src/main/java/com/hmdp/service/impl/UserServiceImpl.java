@@ -11,6 +11,8 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.LoginSessionCache;
+import com.hmdp.utils.SignedTokenService;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RegexUtils;
 import lombok.extern.log4j.Log4j2;
@@ -41,6 +43,10 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private LoginSessionCache loginSessionCache;
+    @Resource
+    private SignedTokenService signedTokenService;
 
     @Override
     public Result sendCode(String phone, HttpSession session) {
@@ -83,6 +89,10 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
             //        不存在，创建新用户并保存
            user = createUserWithPhone(phone);
         }
+//        签名token模式：用户信息签名后放在token中，不写入redis
+        if (signedTokenService.isSignedMode()) {
+            return Result.ok(signedTokenService.issue(BeanUtil.copyProperties(user, UserDTO.class)));
+        }
 //        保存用户信息到session,因为创建过新用户后也要保存信息到session中,
 //        由于用户信息中有很多敏感信息，所以存入session中的信息不能太全面
 //        保存用户信息到redis中
@@ -101,6 +111,18 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok(token);
     }
 
+    @Override
+    public Result logout(String token) {
+        if (signedTokenService.isSignedToken(token)) {
+//            签名token加入注销列表
+            signedTokenService.revoke(token);
+        } else {
+//            删除redis中的token，并通知所有节点清除本地会话缓存
+            loginSessionCache.invalidate(token);
+        }
+        return Result.ok();
+    }
+
     private User createUserWithPhone(String phone) {
 //        创建用户
         User user = new User();
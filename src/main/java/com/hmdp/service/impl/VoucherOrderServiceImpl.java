@@ -2,34 +2,64 @@ package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.RedisScriptRegistry;
+import com.hmdp.utils.SeckillAdmissionController;
+import com.hmdp.utils.SeckillStockBuckets;
+import com.hmdp.utils.SoldOutRegistry;
 import com.hmdp.utils.UserHolder;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.connection.StringRedisConnection;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_TTL;
+import static com.hmdp.utils.RedisConstants.SECKILL_BUCKETS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DLQ;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
 
 
 /**
@@ -48,44 +78,144 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private ISeckillVoucherService seckillVoucherService;
 
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+//    id生成器，由 hmdp.id.mode 决定使用Redis号段还是本地雪花算法
+    @Resource
+    private IdGenerator idGenerator;
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
-//    注入Redisson锁
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+//    秒杀相关的Lua脚本由注册表预加载，只通过EVALSHA执行
     @Resource
-    private RedissonClient redissonClient;
+    private RedisScriptRegistry redisScriptRegistry;
+
+//    准入控制：用户限流、消费积压、按剩余库存限流，拒绝的请求不访问Redis
+    @Resource
+    private SeckillAdmissionController seckillAdmissionController;
+
+//    事务方法需要通过代理对象调用，消费线程里拿不到AopContext，所以注入自身的延迟代理
+    @Lazy
+    @Resource
+    private IVoucherOrderService proxy;
+
+//    每个节点启动的消费者数量，以及每次XREADGROUP最多读取的消息数
+    @Value("${hmdp.order.consumer.count:4}")
+    private int consumerCount;
+    @Value("${hmdp.order.consumer.batch-size:50}")
+    private int batchSize;
+//    pending消息恢复：扫描间隔、每次扫描数量、最大重试次数、退避时间
+    @Value("${hmdp.order.recovery.interval-millis:5000}")
+    private long recoveryIntervalMillis;
+    @Value("${hmdp.order.recovery.batch-size:100}")
+    private int recoveryBatchSize;
+    @Value("${hmdp.order.recovery.max-retries:5}")
+    private int maxRetries;
+    @Value("${hmdp.order.recovery.base-backoff-millis:10000}")
+    private long baseBackoffMillis;
+    @Value("${hmdp.order.recovery.max-backoff-millis:300000}")
+    private long maxBackoffMillis;
 
 //    创建阻塞队列
 //    利用消息的队列替代阻塞队列，所以下边这一行可注释
 //    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024*1024);
 
-//    创建线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+//    创建线程池，每个消费者独占一个线程
+    private ExecutorService seckillOrderExecutor;
+    private final ScheduledExecutorService pendingRecoveryExecutor = Executors.newSingleThreadScheduledExecutor();
+    private volatile boolean running = true;
+
+//    消费者名称前缀，格式为 pid@host，保证多节点部署时消费者名称不重复
+    private static final String CONSUMER_PREFIX = ManagementFactory.getRuntimeMXBean().getName() + "-c";
+    private static final String RECOVERY_CONSUMER = ManagementFactory.getRuntimeMXBean().getName() + "-recovery";
+//    每次恢复最多扫描的pending-list页数，每页 recovery.batch-size 条
+    private static final int MAX_RECOVERY_PAGES = 10;
+//    查询死信队列时每次最多返回的条数
+    private static final int MAX_DEAD_LETTER_COUNT = 100;
+
+//    本节点已售罄的秒杀券，以及缓存的秒杀开始、结束时间，命中时不访问Redis直接拒绝
+    private final SoldOutRegistry soldOutRegistry = new SoldOutRegistry();
+    private final Map<Long, SeckillWindow> seckillWindows = new ConcurrentHashMap<>();
+//    不存在的秒杀券缓存5秒后重新查询，新增的券最迟5秒后可以秒杀
+    private static final long MISSING_WINDOW_MILLIS = 5000L;
+    private static final String SOLD_OUT_MESSAGE = "soldout:";
+    private static final String RESET_MESSAGE = "reset:";
+//    补货后这段时间内忽略其他节点的售罄通知，它们可能是补货之前发出的请求得到的结果
+    private static final long RESET_SETTLE_MILLIS = 1000L;
+
+//    订单状态，QUEUED由秒杀脚本（分桶时由本类）写入，其余由消费者写入
+    private static final String ORDER_STATUS_QUEUED = "QUEUED";
+    private static final String ORDER_STATUS_CREATED = "CREATED";
+    private static final String ORDER_STATUS_FAILED = "FAILED";
+
+//    吞吐量统计
+    private final long startMillis = System.currentTimeMillis();
+    private final LongAdder consumedCount = new LongAdder();
+    private final LongAdder savedCount = new LongAdder();
+    private final LongAdder batchCount = new LongAdder();
+    private final LongAdder failedBatchCount = new LongAdder();
+    private final LongAdder recoveredCount = new LongAdder();
+    private final LongAdder deadLetterCount = new LongAdder();
 
 //    该注解的作用是当前类初始化完成后执行
     @PostConstruct
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandle());
+        createGroupIfAbsent();
+        redisMessageListenerContainer.addMessageListener(this::onSeckillVoucherMessage, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumerCount);
+        for (int i = 0; i < consumerCount; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandle(CONSUMER_PREFIX + i));
+        }
+        pendingRecoveryExecutor.scheduleWithFixedDelay(
+                new PendingOrderRecovery(), recoveryIntervalMillis, recoveryIntervalMillis, TimeUnit.MILLISECONDS);
     }
-//    执行Lua脚本
-    private static final DefaultRedisScript<Long>  SECKILL_SCRIPT;
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+//        停止拉取新消息，等待正在处理的批次提交完成，未ack的消息会留在pending-list中
+        running = false;
+        pendingRecoveryExecutor.shutdown();
+        seckillOrderExecutor.shutdown();
+        seckillOrderExecutor.awaitTermination(5, TimeUnit.SECONDS);
     }
+
+//    XGROUP CREATE streams.order g1 0 MKSTREAM，组已存在时会报BUSYGROUP，忽略即可
+    private void createGroupIfAbsent() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    SECKILL_ORDER_STREAM.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            log.debug("消费者组{}已存在", SECKILL_ORDER_GROUP);
+        }
+    }
+
+//    执行Lua脚本，脚本名即resources下的文件名
+    private static final String SECKILL_SCRIPT = "seckill";
+//    分桶秒杀：主桶扣减并去重、从其他桶扣减、释放主桶占位
+    private static final String SECKILL_BUCKET_SCRIPT = "seckill_bucket";
+    private static final String SECKILL_TAKE_SCRIPT = "seckill_take";
+    private static final String SECKILL_RELEASE_SCRIPT = "seckill_release";
     //    创建线程任务
     private class VoucherOrderHandle implements Runnable{
-        String queueName = "streams.order";
+        String queueName = SECKILL_ORDER_STREAM;
+        private final String consumerName;
+
+        VoucherOrderHandle(String consumerName) {
+            this.consumerName = consumerName;
+        }
+
         @Override
         public void run() {
-            while (true){
+            while (running){
                 try {
-//             获取消息队列中的订单信息，XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS streams.order >
+//             批量获取消息队列中的订单信息，XREADGROUP GROUP g1 {consumerName} COUNT {batchSize} BLOCK 2000 STREAMS streams.order >
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
+                            Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
                             StreamOffset.create(queueName, ReadOffset.lastConsumed())
                     );
 //                    判断消息获取是否成功
@@ -93,48 +223,179 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                         //                    如果失败，说明没有消息，继续下次循环
                         continue;
                     }
-//                    解析消息中的订单
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-//                    如果成功，则创建订单
-                    handleVoucherOrder(voucherOrder);
-                    //ack确认,SACK streams.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
+//                    整批创建订单并ack
+                    handleVoucherOrderBatch(list);
                 } catch (Exception e) {
+//                    失败的消息留在pending-list中，由恢复任务统一按退避策略重试，这里不再原地死循环
                     log.error("处理秒杀券订单异常",e);
-                    handlePendingList();
+                    sleepQuietly(1000);
                 }
             }
         }
+    }
 
-        private void handlePendingList() {
-            while (true){
-                try {
-//             获取pending-list中的订单信息，XREADGROUP GROUP g1 c1 COUNT 1 STREAMS streams.order 0
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
-                    );
-//                    判断消息获取是否成功
-                    if (list == null || list.isEmpty()){
-                        // 如果失败，说明pending-list没有消息，继续下次循环
-                        break;
+//    处理一批订单消息：整批一个事务；整批失败时逐条重试，出错的消息留在pending-list中
+    private void handleVoucherOrderBatch(List<? extends MapRecord<String, ?, ?>> list) {
+//        解析消息中的订单
+        List<VoucherOrder> voucherOrders = new ArrayList<>(list.size());
+        RecordId[] recordIds = new RecordId[list.size()];
+        for (int i = 0; i < list.size(); i++) {
+            MapRecord<String, ?, ?> record = list.get(i);
+            voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+            recordIds[i] = record.getId();
+        }
+        consumedCount.add(list.size());
+        try {
+//            一个事务内创建整批订单
+            List<Long> rejectedIds = proxy.createVoucherOrders(voucherOrders);
+            savedCount.add(voucherOrders.size() - rejectedIds.size());
+            batchCount.increment();
+            markOrderStatus(voucherOrders, rejectedIds);
+        } catch (RuntimeException e) {
+            failedBatchCount.increment();
+            log.error("批量创建订单失败，改为逐条处理", e);
+            recordIds = handleVoucherOrderOneByOne(voucherOrders, recordIds);
+        }
+//        整批ack确认,XACK streams.order g1 id1 id2 ...
+        if (recordIds.length > 0) {
+            stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, recordIds);
+        }
+    }
+
+//    逐条创建订单，返回处理成功、可以ack的消息id
+    private RecordId[] handleVoucherOrderOneByOne(List<VoucherOrder> voucherOrders, RecordId[] recordIds) {
+        List<RecordId> succeeded = new ArrayList<>(recordIds.length);
+        for (int i = 0; i < recordIds.length; i++) {
+            try {
+                List<VoucherOrder> single = Collections.singletonList(voucherOrders.get(i));
+                List<Long> rejectedIds = proxy.createVoucherOrders(single);
+                savedCount.add(1 - rejectedIds.size());
+                markOrderStatus(single, rejectedIds);
+                succeeded.add(recordIds[i]);
+            } catch (RuntimeException e) {
+                log.error("创建订单失败，消息id:{}", recordIds[i], e);
+            }
+        }
+        return succeeded.toArray(new RecordId[0]);
+    }
+
+    //    创建恢复任务：定时认领空闲过久的pending消息（包括已经宕机的消费者名下的消息），按投递次数指数退避重试，超过重试上限转入死信队列
+    private class PendingOrderRecovery implements Runnable {
+        @Override
+        public void run() {
+            try {
+                recoverPendingOrders();
+            } catch (Exception e) {
+                log.error("恢复pending订单消息异常", e);
+            }
+        }
+
+//        上一次扫描停止的位置，只在恢复线程中访问
+        private String cursor;
+
+//        从上次停止的位置分页扫描pending-list，退避中的消息不会挡住后面的消息；扫到末尾后从头开始
+        private void recoverPendingOrders() {
+            int claimed = 0;
+            for (int page = 0; page < MAX_RECOVERY_PAGES && claimed < recoveryBatchSize; page++) {
+//                XPENDING streams.order g1 {cursor} + {count}，包含每条消息的消费者、空闲时间和投递次数
+                Range<String> range = cursor == null ? Range.unbounded() : Range.rightUnbounded(Range.Bound.inclusive(cursor));
+                PendingMessages pendingMessages = stringRedisTemplate.opsForStream()
+                        .pending(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, range, recoveryBatchSize);
+                Map<Long, List<RecordId>> claimIds = new TreeMap<>();
+                Map<String, Long> deliveryCounts = new HashMap<>();
+                int scanned = 0;
+                for (PendingMessage pendingMessage : pendingMessages) {
+//                    起始位置是包含的，上一页最后一条已经处理过
+                    if (pendingMessage.getIdAsString().equals(cursor)) {
+                        continue;
                     }
-//                    解析消息中的订单
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-//                    如果成功，则创建订单
-                    handleVoucherOrder(voucherOrder);
-                    //ack确认,SACK streams.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
-                } catch (Exception e) {
-                    log.error("处理秒杀券订单异常",e);
+                    scanned++;
+                    cursor = pendingMessage.getIdAsString();
+                    long deliveryCount = pendingMessage.getTotalDeliveryCount();
+                    long idleMillis = pendingMessage.getElapsedTimeSinceLastDelivery().toMillis();
+//                    指数退避：第n次投递后至少空闲 base * 2^(n-1) 毫秒才会再次重试
+                    long minIdle = deliveryCount > maxRetries ? baseBackoffMillis : backoffMillis(deliveryCount);
+                    if (idleMillis < minIdle) {
+                        continue;
+                    }
+                    deliveryCounts.put(pendingMessage.getIdAsString(), deliveryCount);
+                    claimIds.computeIfAbsent(minIdle, k -> new ArrayList<>()).add(pendingMessage.getId());
+                }
+                claimIds.forEach((minIdle, ids) -> claim(ids, minIdle, deliveryCounts));
+                claimed += deliveryCounts.size();
+                if (scanned == 0 || pendingMessages.size() < recoveryBatchSize) {
+                    cursor = null;
+                    break;
                 }
             }
         }
+
+//        XCLAIM streams.order g1 {recovery} {minIdle} id...，minIdle与本地判断的退避时间一致，多个节点同时认领时只有一个能成功
+        private void claim(List<RecordId> ids, long minIdle, Map<String, Long> deliveryCounts) {
+            List<StringRecord> records = stringRedisTemplate.execute((RedisCallback<List<StringRecord>>) connection ->
+                    ((StringRedisConnection) connection).xClaim(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, RECOVERY_CONSUMER,
+                            RedisStreamCommands.XClaimOptions.minIdle(Duration.ofMillis(minIdle))
+                                    .ids(ids.toArray(new RecordId[0]))));
+            if (records == null) {
+                return;
+            }
+            for (StringRecord record : records) {
+                Long deliveryCount = deliveryCounts.get(record.getId().getValue());
+                if (deliveryCount != null && deliveryCount > maxRetries) {
+                    moveToDeadLetter(record, deliveryCount);
+                    continue;
+                }
+//                逐条重试，一条坏消息不会影响其他消息
+                handleVoucherOrderBatch(Collections.singletonList(record));
+                recoveredCount.increment();
+            }
+        }
+    }
+
+//    消费者写入订单状态：已创建，或因数据库库存不足创建失败
+    private void markOrderStatus(List<VoucherOrder> voucherOrders, Collection<Long> rejectedIds) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                String statusKey = ORDER_STATUS_KEY + voucherOrder.getId();
+                String status = rejectedIds.contains(voucherOrder.getId()) ? ORDER_STATUS_FAILED : ORDER_STATUS_CREATED;
+                stringConnection.hSet(statusKey, "status", status);
+                stringConnection.expire(statusKey, ORDER_STATUS_TTL);
+            }
+            return null;
+        });
+    }
+
+    private long backoffMillis(long deliveryCount) {
+        long shift = Math.min(Math.max(deliveryCount - 1, 0), 20);
+        return Math.min(baseBackoffMillis << shift, maxBackoffMillis);
+    }
+
+//    转入死信队列：保留原始字段，附带原消息id和投递次数，然后ack原消息
+    private void moveToDeadLetter(StringRecord record, long deliveryCount) {
+        Map<String, String> values = new HashMap<>(record.getValue());
+        values.put("originId", record.getId().getValue());
+        values.put("deliveryCount", String.valueOf(deliveryCount));
+        stringRedisTemplate.opsForStream().add(StreamRecords.string(values).withStreamKey(SECKILL_ORDER_DLQ));
+        stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, record.getId());
+//        状态可能已经过期，重新设置有效期，避免留下永不过期的key
+        String statusKey = ORDER_STATUS_KEY + record.getValue().get("id");
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            stringConnection.hSet(statusKey, "status", ORDER_STATUS_FAILED);
+            stringConnection.expire(statusKey, ORDER_STATUS_TTL);
+            return null;
+        });
+        deadLetterCount.increment();
+        log.error("订单消息{}超过最大重试次数{}，已转入死信队列", record.getId(), maxRetries);
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
 /*//    创建线程任务
@@ -154,52 +415,280 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     }
 }*/
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-//        1. 获取用户
-        Long userId = voucherOrder.getUserId();
-        //        2.创建锁对象
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-//        3.获取锁
-        boolean isLock = lock.tryLock();
-//        4.判断尝试获取锁成功
-        if (isLock){
-//            获取锁失败，返回错误或重试
-            log.error("不允许重复下单!");
-            return;
+    @Override
+    public Result seckillVoucher(Long voucherId) {
+        return seckillVoucherAsync(voucherId).join();
+    }
+
+    @Override
+    public CompletableFuture<Result> seckillVoucherAsync(Long voucherId) {
+//        本节点已知售罄或不在秒杀时间内，直接拒绝，不生成id也不访问Redis
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return CompletableFuture.completedFuture(Result.fail("库存不足"));
         }
-        try{
-            proxy.createVoucherOrder(voucherOrder);
-        }finally {
-//            释放锁
-            lock.unlock();
+        SeckillWindow window = seckillWindow(voucherId);
+        long now = System.currentTimeMillis();
+        if (!window.exists) {
+            return CompletableFuture.completedFuture(Result.fail("秒杀券不存在!"));
+        }
+        if (now < window.beginMillis) {
+            return CompletableFuture.completedFuture(Result.fail("秒杀还未开始!"));
+        }
+        if (now > window.endMillis) {
+            return CompletableFuture.completedFuture(Result.fail("秒杀已经结束!"));
+        }
+//        获取用户，UserHolder是ThreadLocal，必须在请求线程中取出
+        Long userId = UserHolder.getUser().getId();
+        switch (seckillAdmissionController.tryAdmit(voucherId, userId, window.buckets)) {
+            case USER_LIMITED:
+                return CompletableFuture.completedFuture(Result.fail("请求过于频繁，请稍后再试!"));
+            case BACKLOGGED:
+            case VOUCHER_LIMITED:
+                return CompletableFuture.completedFuture(Result.fail("当前抢购人数过多，请稍后再试!"));
+            default:
+                break;
         }
+        //   获取订单，有购买资格,把下单信息保存到阻塞队列中
+        long orderId = idGenerator.nextId("order");
+//        执行脚本之前记录epoch，脚本返回库存不足时如果期间补过货就不标记售罄
+        long soldOutEpoch = soldOutRegistry.epoch();
+        if (window.buckets > 1) {
+            return seckillFromBuckets(voucherId, userId, orderId, window, soldOutEpoch);
+        }
+//         异步执行Lua脚本
+        return redisScriptRegistry.executeAsync(SECKILL_SCRIPT, new byte[0][],
+                RedisScriptRegistry.arg(voucherId), RedisScriptRegistry.arg(userId), RedisScriptRegistry.arg(orderId),
+                RedisScriptRegistry.arg(ORDER_STATUS_TTL)
+        ).thenApply(result -> {
+//            判断结果是否为0
+            int r = result.intValue();
+            if (r == 1) {
+//                库存已经扣完，本节点标记售罄并通知其他节点
+                markSoldOut(voucherId, soldOutEpoch);
+            }
+            if (r != 0){
+                //        不为0，没有购买资格
+                return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+            }
+//            返回订单id
+            return Result.ok(orderId);
+        });
+    }
 
+//    分桶秒杀：先在主桶中去重并扣减，主桶没有库存时依次从其他桶扣减，都没有库存时释放主桶占位
+//    桶和消息队列不在同一个slot上，扣减之后的每一步失败都要归还库存、释放占位，否则库存被占用、用户也不能再抢
+    private CompletableFuture<Result> seckillFromBuckets(Long voucherId, Long userId, long orderId, SeckillWindow window, long soldOutEpoch) {
+        int home = SeckillStockBuckets.homeBucket(userId, window.buckets);
+        byte[][] keys = {bytes(SeckillStockBuckets.stockKey(voucherId, home)), bytes(SeckillStockBuckets.orderKey(voucherId, home))};
+        return redisScriptRegistry.executeAsync(SECKILL_BUCKET_SCRIPT, keys, RedisScriptRegistry.arg(userId)).thenCompose(result -> {
+            int r = result.intValue();
+            if (r == 2) {
+                return CompletableFuture.completedFuture(Result.fail("不能重复下单"));
+            }
+            if (r == 0) {
+                return enqueueOrCompensate(voucherId, userId, orderId, home, home);
+            }
+            window.markDrained(home);
+            return takeFromSiblings(voucherId, window, home, 1).handle((bucket, e) -> {
+                if (e != null) {
+//                    其他桶扣减失败，按没有扣到处理，释放占位
+                    log.error("从其他桶扣减秒杀库存失败,voucherId:{}", voucherId, e);
+                    return compensate(voucherId, userId, home, -1).thenApply(v -> Result.fail("下单失败，请稍后重试"));
+                }
+                if (bucket >= 0) {
+                    return enqueueOrCompensate(voucherId, userId, orderId, home, bucket);
+                }
+//                所有桶都已扣完，释放占位，用户补货后还可以再抢
+                return compensate(voucherId, userId, home, -1).thenApply(v -> {
+                    markSoldOut(voucherId, soldOutEpoch);
+                    return Result.fail("库存不足");
+                });
+            }).thenCompose(Function.identity());
+        });
+    }
+
+//    从主桶之后的第step个桶开始依次尝试扣减，跳过本节点已知扣完的桶，返回扣减成功的桶，都没有库存时返回-1
+    private CompletableFuture<Integer> takeFromSiblings(Long voucherId, SeckillWindow window, int home, int step) {
+        if (step >= window.buckets) {
+            return CompletableFuture.completedFuture(-1);
+        }
+        int bucket = (home + step) % window.buckets;
+        if (window.isDrained(bucket)) {
+            return takeFromSiblings(voucherId, window, home, step + 1);
+        }
+        byte[][] keys = {bytes(SeckillStockBuckets.stockKey(voucherId, bucket))};
+        return redisScriptRegistry.executeAsync(SECKILL_TAKE_SCRIPT, keys).thenCompose(result -> {
+            if (result == 0) {
+                return CompletableFuture.completedFuture(bucket);
+            }
+            window.markDrained(bucket);
+            return takeFromSiblings(voucherId, window, home, step + 1);
+        });
+    }
+
+//    写入订单消息失败时，把库存还给扣减的桶并释放主桶占位
+    private CompletableFuture<Result> enqueueOrCompensate(Long voucherId, Long userId, long orderId, int home, int bucket) {
+        return enqueueOrderAsync(voucherId, userId, orderId).handle((result, e) -> {
+            if (e == null) {
+                return CompletableFuture.completedFuture(result);
+            }
+            log.error("写入秒杀订单消息失败，归还库存,orderId:{}", orderId, e);
+            return compensate(voucherId, userId, home, bucket).thenApply(v -> Result.fail("下单失败，请稍后重试"));
+        }).thenCompose(Function.identity());
+    }
+
+//    bucket为扣减了库存的桶，-1表示没有扣到库存只需要释放占位；先归还库存再释放占位，补偿失败只记录日志
+    private CompletableFuture<Void> compensate(Long voucherId, Long userId, int home, int bucket) {
+        CompletableFuture<Long> restored = bucket < 0
+                ? CompletableFuture.completedFuture(0L)
+                : withAsyncCommands(commands -> commands.incrby(
+                        bytes(SeckillStockBuckets.stockKey(voucherId, bucket)), 1).toCompletableFuture());
+        byte[][] orderKey = {bytes(SeckillStockBuckets.orderKey(voucherId, home))};
+        return restored
+                .thenCompose(v -> redisScriptRegistry.executeAsync(SECKILL_RELEASE_SCRIPT, orderKey, RedisScriptRegistry.arg(userId)))
+                .handle((released, e) -> {
+                    if (e != null) {
+                        log.error("秒杀补偿失败,voucherId:{},userId:{},bucket:{}", voucherId, userId, bucket, e);
+                    }
+                    return null;
+                });
+    }
+
+//    分桶时消息队列和订单状态不在桶所在的slot上，由这里写入：先写状态再发消息，消费者更新状态时状态已经存在
+    private CompletableFuture<Result> enqueueOrderAsync(Long voucherId, Long userId, long orderId) {
+        Map<byte[], byte[]> status = new LinkedHashMap<>();
+        status.put(bytes("status"), bytes(ORDER_STATUS_QUEUED));
+        status.put(bytes("userId"), bytes(userId.toString()));
+        status.put(bytes("voucherId"), bytes(voucherId.toString()));
+        Map<byte[], byte[]> order = new LinkedHashMap<>();
+        order.put(bytes("userId"), bytes(userId.toString()));
+        order.put(bytes("voucherId"), bytes(voucherId.toString()));
+        order.put(bytes("id"), bytes(String.valueOf(orderId)));
+        byte[] statusKey = bytes(ORDER_STATUS_KEY + orderId);
+        return withAsyncCommands(commands -> {
+//            同一个连接上的命令按顺序执行，只需要等待最后一条
+            commands.hset(statusKey, status);
+            commands.expire(statusKey, ORDER_STATUS_TTL);
+            return commands.xadd(bytes(SECKILL_ORDER_STREAM), order).toCompletableFuture();
+        }).thenApply(recordId -> Result.ok(orderId));
     }
 
-    private IVoucherOrderService proxy;
     @Override
-    public Result seckillVoucher(Long voucherId) {
-//        获取用户
-        Long userId = UserHolder.getUser().getId();
-        //   获取订单，有购买资格,把下单信息保存到阻塞队列中
-        long orderId = redisIdWorker.nextId("order");
-//         执行Lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId)
-        );
-//        判断结果是否为0
-        int r = result.intValue();
-        if (r != 0){
-            //        不为0，没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
-        }
-
-//        获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-//        返回订单id
-        return Result.ok(0);
+    public void resetSeckillVoucher(Long voucherId) {
+        clearSeckillState(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, RESET_MESSAGE + voucherId);
+    }
+
+    private void markSoldOut(Long voucherId, long soldOutEpoch) {
+//        只有第一次标记时广播；发起请求之后补过货的结果已经过时，不标记
+        if (soldOutRegistry.markSoldOut(voucherId, soldOutEpoch)) {
+//            在Lettuce的回调线程中执行，使用异步命令发布，不能同步等待响应
+            withAsyncCommands(commands -> commands.publish(
+                    bytes(SECKILL_SOLD_OUT_CHANNEL), bytes(SOLD_OUT_MESSAGE + voucherId)));
+        }
+    }
+
+    private void clearSeckillState(Long voucherId) {
+        soldOutRegistry.clear(voucherId);
+        seckillWindows.remove(voucherId);
+    }
+
+    private void onSeckillVoucherMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (body.startsWith(SOLD_OUT_MESSAGE)) {
+            long voucherId = Long.parseLong(body.substring(SOLD_OUT_MESSAGE.length()));
+//            刚补过货时其他节点的售罄通知可能来自补货之前的请求，忽略；真正售罄时本节点自己的请求会再标记
+            if (!soldOutRegistry.clearedWithin(voucherId, RESET_SETTLE_MILLIS)) {
+                soldOutRegistry.markSoldOut(voucherId);
+            }
+        } else if (body.startsWith(RESET_MESSAGE)) {
+            clearSeckillState(Long.parseLong(body.substring(RESET_MESSAGE.length())));
+        }
+    }
+
+//    秒杀时间从tb_seckill_voucher加载、桶数量从Redis加载后缓存在本地，修改时间或补充库存时由resetSeckillVoucher清除
+    private SeckillWindow seckillWindow(Long voucherId) {
+        SeckillWindow window = seckillWindows.get(voucherId);
+        if (window != null && (window.exists || System.currentTimeMillis() - window.loadedMillis < MISSING_WINDOW_MILLIS)) {
+            return window;
+        }
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        if (seckillVoucher == null) {
+            window = SeckillWindow.missing();
+        } else {
+            String buckets = stringRedisTemplate.opsForValue().get(SECKILL_BUCKETS_KEY + voucherId);
+            window = new SeckillWindow(toEpochMilli(seckillVoucher.getBeginTime()), toEpochMilli(seckillVoucher.getEndTime()),
+                    buckets == null ? 1 : Integer.parseInt(buckets));
+        }
+        seckillWindows.put(voucherId, window);
+        return window;
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static final class SeckillWindow {
+        final boolean exists;
+        final long beginMillis;
+        final long endMillis;
+        final int buckets;
+        final long loadedMillis = System.currentTimeMillis();
+//        本节点已知扣完的桶，库存只减不增（补货会清除整个窗口），不再访问这些桶
+        private final AtomicLong drainedBuckets = new AtomicLong();
+
+        SeckillWindow(long beginMillis, long endMillis, int buckets) {
+            this(true, beginMillis, endMillis, buckets);
+        }
+
+        private SeckillWindow(boolean exists, long beginMillis, long endMillis, int buckets) {
+            this.exists = exists;
+            this.beginMillis = beginMillis;
+            this.endMillis = endMillis;
+            this.buckets = Math.min(buckets, SeckillStockBuckets.MAX_BUCKETS);
+        }
+
+        static SeckillWindow missing() {
+            return new SeckillWindow(false, 0, 0, 1);
+        }
+
+        boolean isDrained(int bucket) {
+            return (drainedBuckets.get() & (1L << bucket)) != 0;
+        }
+
+        void markDrained(int bucket) {
+            drainedBuckets.accumulateAndGet(1L << bucket, (a, b) -> a | b);
+        }
+    }
+
+//    通过Lettuce的异步命令写入订单消息、发布售罄通知，不阻塞Lettuce的回调线程
+    @SuppressWarnings("unchecked")
+    private <T> T withAsyncCommands(Function<RedisClusterAsyncCommands<byte[], byte[]>, T> action) {
+        RedisConnection connection = stringRedisTemplate.getRequiredConnectionFactory().getConnection();
+        try {
+//            默认共享同一个原生连接，关闭RedisConnection不会关闭它
+            return action.apply((RedisClusterAsyncCommands<byte[], byte[]>) connection.getNativeConnection());
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        Map<Object, Object> status = stringRedisTemplate.opsForHash().entries(ORDER_STATUS_KEY + orderId);
+//        只能查询自己的订单
+        if (status.isEmpty() || !UserHolder.getUser().getId().toString().equals(status.get("userId"))) {
+            return Result.fail("订单不存在!");
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("orderId", orderId);
+        result.put("voucherId", status.get("voucherId"));
+        result.put("status", status.get("status"));
+        return Result.ok(result);
     }
 //    @Override
 //    public Result seckillVoucher(Long voucherId) {
@@ -317,4 +806,129 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
             //        7.返回订单id
             return Result.ok();
     }
+
+    @Override
+    @Transactional
+    public List<Long> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+//        1.批次内去重，同一用户同一张券只保留第一条
+        Map<String, VoucherOrder> orderMap = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            orderMap.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder);
+        }
+//        2.一次查询整批用户已有的订单，实现一人一单（消息重投时订单可能已经落库）
+        Set<Long> userIds = new HashSet<>();
+        Set<Long> voucherIds = new HashSet<>();
+        for (VoucherOrder voucherOrder : orderMap.values()) {
+            userIds.add(voucherOrder.getUserId());
+            voucherIds.add(voucherOrder.getVoucherId());
+        }
+        List<VoucherOrder> existOrders = query().select("user_id", "voucher_id")
+                .in("user_id", userIds).in("voucher_id", voucherIds).list();
+        for (VoucherOrder existOrder : existOrders) {
+            if (orderMap.remove(existOrder.getUserId() + ":" + existOrder.getVoucherId()) != null) {
+                log.error("用户{}已经购买过优惠券{}了!", existOrder.getUserId(), existOrder.getVoucherId());
+            }
+        }
+//        3.按优惠券分组，每张券只执行一次扣减库存
+        Map<Long, List<VoucherOrder>> voucherOrderGroups = orderMap.values().stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        List<VoucherOrder> saveOrders = new ArrayList<>(orderMap.size());
+        List<Long> rejectedIds = new ArrayList<>();
+        for (Map.Entry<Long, List<VoucherOrder>> entry : voucherOrderGroups.entrySet()) {
+            Long voucherId = entry.getKey();
+            List<VoucherOrder> group = entry.getValue();
+//            UPDATE tb_seckill_voucher SET stock = stock - n WHERE voucher_id = ? AND stock >= n
+            if (seckillVoucherMapper.deductStock(voucherId, group.size()) > 0) {
+                saveOrders.addAll(group);
+                continue;
+            }
+//            正常情况下Redis已经做过库存校验，走到这里说明数据库库存与Redis不一致，能卖多少卖多少
+            SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+            int count = seckillVoucher == null ? 0 : Math.min(seckillVoucher.getStock(), group.size());
+            if (count <= 0 || seckillVoucherMapper.deductStock(voucherId, count) == 0) {
+                count = 0;
+            }
+            saveOrders.addAll(group.subList(0, count));
+            for (VoucherOrder rejected : group.subList(count, group.size())) {
+                rejectedIds.add(rejected.getId());
+            }
+            log.error("优惠券{}库存不足，{}个订单未创建!", voucherId, group.size() - count);
+        }
+//        4.多行插入订单
+        if (!saveOrders.isEmpty()) {
+            getBaseMapper().insertBatch(saveOrders);
+        }
+        return rejectedIds;
+    }
+
+    @Override
+    public Result queryOrderStreamMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long seconds = Math.max(1, (System.currentTimeMillis() - startMillis) / 1000);
+        metrics.put("consumers", consumerCount);
+        metrics.put("batchSize", batchSize);
+        metrics.put("consumed", consumedCount.sum());
+        metrics.put("saved", savedCount.sum());
+        metrics.put("batches", batchCount.sum());
+        metrics.put("failedBatches", failedBatchCount.sum());
+        metrics.put("recovered", recoveredCount.sum());
+        metrics.put("deadLettered", deadLetterCount.sum());
+        metrics.put("ordersPerSecond", savedCount.sum() / seconds);
+        metrics.put("admission", seckillAdmissionController.getStats());
+        metrics.put("scripts", redisScriptRegistry.getStats());
+//        消息积压情况：队列长度、pending数量，以及最新消息与最后投递消息之间的时间差
+        StreamInfo.XInfoStream streamInfo = stringRedisTemplate.opsForStream().info(SECKILL_ORDER_STREAM);
+        metrics.put("streamLength", streamInfo.streamLength());
+        stringRedisTemplate.opsForStream().groups(SECKILL_ORDER_STREAM).stream()
+                .filter(group -> SECKILL_ORDER_GROUP.equals(group.groupName()))
+                .findFirst()
+                .ifPresent(group -> {
+                    metrics.put("pending", group.pendingCount());
+                    long lastGenerated = RecordId.of(streamInfo.lastGeneratedId()).getTimestamp();
+                    long lastDelivered = RecordId.of(group.lastDeliveredId()).getTimestamp();
+                    metrics.put("lagMillis", Math.max(0, lastGenerated - lastDelivered));
+                });
+        return Result.ok(metrics);
+    }
+
+    @Override
+    public Result queryDeadLetterOrders(Integer count) {
+        if (count == null || count < 1) {
+            return Result.fail("条数必须大于0!");
+        }
+        count = Math.min(count, MAX_DEAD_LETTER_COUNT);
+//        XRANGE streams.order.dlq - + COUNT {count}
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(SECKILL_ORDER_DLQ, Range.unbounded(), Limit.limit().count(count));
+        List<Map<Object, Object>> list = new ArrayList<>();
+        if (records != null) {
+            for (MapRecord<String, Object, Object> record : records) {
+                Map<Object, Object> values = new LinkedHashMap<>(record.getValue());
+                values.put("deadLetterId", record.getId().getValue());
+                list.add(values);
+            }
+        }
+        return Result.ok(list);
+    }
+
+    @Override
+    public Result replayDeadLetterOrder(String deadLetterId) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(SECKILL_ORDER_DLQ, Range.closed(deadLetterId, deadLetterId));
+        if (records == null || records.isEmpty()) {
+            return Result.fail("死信消息不存在!");
+        }
+//        只重新投递订单字段，重新进入streams.order后按正常流程消费
+        Map<Object, Object> values = records.get(0).getValue();
+        Map<String, String> order = new HashMap<>();
+        order.put("userId", String.valueOf(values.get("userId")));
+        order.put("voucherId", String.valueOf(values.get("voucherId")));
+        order.put("id", String.valueOf(values.get("id")));
+        RecordId recordId = stringRedisTemplate.opsForStream().add(StreamRecords.string(order).withStreamKey(SECKILL_ORDER_STREAM));
+        stringRedisTemplate.opsForStream().delete(SECKILL_ORDER_DLQ, deadLetterId);
+        String statusKey = ORDER_STATUS_KEY + order.get("id");
+        stringRedisTemplate.opsForHash().put(statusKey, "status", ORDER_STATUS_QUEUED);
+        stringRedisTemplate.expire(statusKey, ORDER_STATUS_TTL, TimeUnit.SECONDS);
+        return Result.ok(recordId == null ? null : recordId.getValue());
+    }
 }
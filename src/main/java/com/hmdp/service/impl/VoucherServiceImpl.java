@@ -6,14 +6,20 @@ import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillStockBuckets;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.util.List;
 
+import static com.hmdp.utils.RedisConstants.SECKILL_BUCKETS_KEY;
 import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
 
 /**
@@ -33,6 +39,15 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+//    秒杀库存最多拆成几个桶，以及每个桶至少多少库存；库存不够拆时仍然使用单个key
+    @Value("${hmdp.seckill.stock-buckets:1}")
+    private int stockBuckets;
+    @Value("${hmdp.seckill.min-bucket-stock:100}")
+    private long minBucketStock;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -54,6 +69,73 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
 //        保存秒杀库存到Redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(),voucher.getStock().toString());
+        saveSeckillStock(voucher.getId(), voucher.getStock());
+//        事务提交后清除各节点缓存的"券不存在"状态
+        afterCommit(() -> voucherOrderService.resetSeckillVoucher(voucher.getId()));
+    }
+
+    @Override
+    @Transactional
+    public Result addSeckillStock(Long voucherId, Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("补充的库存必须大于0!");
+        }
+//        补充数据库库存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            return Result.fail("秒杀券不存在!");
+        }
+//        事务提交后再补充Redis库存，并清除所有节点的售罄标记
+        afterCommit(() -> {
+            incrementSeckillStock(voucherId, count);
+            voucherOrderService.resetSeckillVoucher(voucherId);
+        });
+        return Result.ok();
+    }
+
+//    库存足够时拆到多个桶，桶数量最后写入，秒杀请求读到桶数量时所有桶的库存都已就绪
+    private void saveSeckillStock(Long voucherId, Integer stock) {
+        int buckets = SeckillStockBuckets.bucketCount(stock, stockBuckets, minBucketStock);
+        if (buckets <= 1) {
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, stock.toString());
+            return;
+        }
+//        桶分布在不同的slot上，逐个写入，不使用管道
+        long[] parts = SeckillStockBuckets.split(stock, buckets);
+        for (int i = 0; i < buckets; i++) {
+            stringRedisTemplate.opsForValue().set(SeckillStockBuckets.stockKey(voucherId, i), String.valueOf(parts[i]));
+        }
+        stringRedisTemplate.opsForValue().set(SECKILL_BUCKETS_KEY + voucherId, String.valueOf(buckets));
+    }
+
+//    补充的库存按创建时的桶数量平均分配
+    private void incrementSeckillStock(Long voucherId, Integer count) {
+        String buckets = stringRedisTemplate.opsForValue().get(SECKILL_BUCKETS_KEY + voucherId);
+        if (buckets == null) {
+            stringRedisTemplate.opsForValue().increment(SECKILL_STOCK_KEY + voucherId, count);
+            return;
+        }
+        long[] parts = SeckillStockBuckets.split(count, Integer.parseInt(buckets));
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i] > 0) {
+                stringRedisTemplate.opsForValue().increment(SeckillStockBuckets.stockKey(voucherId, i), parts[i]);
+            }
+        }
+    }
+
+    private static void afterCommit(Runnable task) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            task.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                task.run();
+            }
+        });
     }
 }
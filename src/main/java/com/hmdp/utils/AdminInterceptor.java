@@ -0,0 +1,30 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Set;
+
+/**
+ * 运维接口（/admin/**）只允许配置的管理员用户访问，在LoginInterceptor之后执行
+ */
+public class AdminInterceptor implements HandlerInterceptor {
+//    与LoginInterceptor一样由MvcConfig创建，管理员id通过构造器传入
+    private final Set<Long> adminUserIds;
+    public AdminInterceptor(Set<Long> adminUserIds) {
+        this.adminUserIds = adminUserIds;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserDTO user = UserHolder.getUser();
+        if (user == null || !adminUserIds.contains(user.getId())) {
+//            不是管理员，拒绝
+            response.setStatus(403);
+            return false;
+        }
+        return true;
+    }
+}
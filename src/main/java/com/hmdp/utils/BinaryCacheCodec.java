@@ -0,0 +1,204 @@
+package com.hmdp.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 紧凑的二进制编解码
+ * <p>
+ * 格式：1字节魔数 | 1字节版本 | 8字节逻辑过期时间 | 按类型的Schema依次写出的字段。
+ * 每个类型的字段顺序由手写的Schema决定，编解码时不做反射；读过期时间只需要读固定位置的8个字节。
+ * 没有注册Schema的类型、以及Redis中原有的JSON数据（没有魔数）交给fallback处理，切换编码方式时不需要清空缓存。
+ */
+public class BinaryCacheCodec implements CacheCodec {
+    private static final byte MAGIC = (byte) 0xCB;
+    private static final byte VERSION = 1;
+    private static final int HEADER_LENGTH = 10;
+
+    private final Map<Class<?>, Schema<?>> schemas = new ConcurrentHashMap<>();
+    private final CacheCodec fallback;
+
+    public BinaryCacheCodec(CacheCodec fallback) {
+        this.fallback = fallback;
+    }
+
+    public <T> BinaryCacheCodec register(Class<T> type, Schema<T> schema) {
+        schemas.put(type, schema);
+        return this;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public byte[] encode(Object value, long expireAt) {
+        Schema<Object> schema = value == null ? null : (Schema<Object>) schemas.get(value.getClass());
+        if (schema == null) {
+            return fallback.encode(value, expireAt);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (Output out = new Output(bytes)) {
+            out.writeByte(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(expireAt);
+            schema.write(value, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public long expireAt(byte[] bytes) {
+        if (!isBinary(bytes)) {
+            return fallback.expireAt(bytes);
+        }
+//        直接读取头部的8个字节（大端序，与DataOutputStream.writeLong一致）
+        long expireAt = 0;
+        for (int i = 2; i < HEADER_LENGTH; i++) {
+            expireAt = (expireAt << 8) | (bytes[i] & 0xFF);
+        }
+        return expireAt;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        if (!isBinary(bytes)) {
+            return fallback.decode(bytes, type);
+        }
+        Schema<T> schema = (Schema<T>) schemas.get(type);
+        if (schema == null) {
+            throw new IllegalStateException("没有注册二进制Schema:" + type.getName());
+        }
+        try (Input in = new Input(new ByteArrayInputStream(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH))) {
+            return schema.read(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public <T> Decoded<T> decodeWithExpire(byte[] bytes, Class<T> type) {
+        if (!isBinary(bytes)) {
+            return fallback.decodeWithExpire(bytes, type);
+        }
+        return new Decoded<>(decode(bytes, type), expireAt(bytes));
+    }
+
+    private static boolean isBinary(byte[] bytes) {
+        return bytes.length >= HEADER_LENGTH && bytes[0] == MAGIC && bytes[1] == VERSION;
+    }
+
+    /**
+     * 一个类型的字段读写顺序，read必须按write的顺序读取；新增字段只能加在末尾并提升VERSION
+     */
+    public interface Schema<T> {
+        void write(T value, Output out) throws IOException;
+
+        T read(Input in) throws IOException;
+    }
+
+//    可以为null的字段先写1字节的标记
+    public static final class Output extends DataOutputStream {
+        Output(OutputStream out) {
+            super(out);
+        }
+
+        public void writeNullableLong(Long value) throws IOException {
+            writeBoolean(value != null);
+            if (value != null) {
+                writeLong(value);
+            }
+        }
+
+        public void writeNullableInt(Integer value) throws IOException {
+            writeBoolean(value != null);
+            if (value != null) {
+                writeInt(value);
+            }
+        }
+
+        public void writeNullableDouble(Double value) throws IOException {
+            writeBoolean(value != null);
+            if (value != null) {
+                writeDouble(value);
+            }
+        }
+
+        public void writeNullableBoolean(Boolean value) throws IOException {
+//            0:null 1:false 2:true
+            writeByte(value == null ? 0 : (value ? 2 : 1));
+        }
+
+        public void writeNullableString(String value) throws IOException {
+//            长度为-1表示null，writeUTF最多只能写64KB，这里用int长度
+            if (value == null) {
+                writeInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(bytes.length);
+            write(bytes);
+        }
+
+        public void writeNullableDateTime(LocalDateTime value) throws IOException {
+            writeBoolean(value != null);
+            if (value != null) {
+                writeLong(value.toEpochSecond(ZoneOffset.UTC));
+                writeInt(value.getNano());
+            }
+        }
+    }
+
+    public static final class Input extends DataInputStream {
+        Input(InputStream in) {
+            super(in);
+        }
+
+        public Long readNullableLong() throws IOException {
+            return readBoolean() ? readLong() : null;
+        }
+
+        public Integer readNullableInt() throws IOException {
+            return readBoolean() ? readInt() : null;
+        }
+
+        public Double readNullableDouble() throws IOException {
+            return readBoolean() ? readDouble() : null;
+        }
+
+        public Boolean readNullableBoolean() throws IOException {
+            byte flag = readByte();
+            return flag == 0 ? null : flag == 2;
+        }
+
+        public String readNullableString() throws IOException {
+            int length = readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        public LocalDateTime readNullableDateTime() throws IOException {
+            if (!readBoolean()) {
+                return null;
+            }
+            long epochSecond = readLong();
+            int nano = readInt();
+            return LocalDateTime.ofEpochSecond(epochSecond, nano, ZoneOffset.UTC);
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.ScrollResult;
+import com.hmdp.entity.Follow;
+import com.hmdp.mapper.FollowMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.FEED_BIG_AUTHORS_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_OUTBOX_KEY;
+import static com.hmdp.utils.RedisConstants.FOLLOWS_KEY;
+
+/**
+ * 关注的人发布的博客，推拉结合
+ * <p>
+ * 每个用户一个收件箱ZSET feed:{userId}，成员为博客id，分数为发布时间，只保留最新的 inbox-max-size 条。
+ * 粉丝数少于 big-author-followers 的作者发布博客时，在后台线程中从tb_follow分批读取粉丝，每批一次管道ZADD到粉丝的收件箱；
+ * 粉丝数达到阈值的作者记入SET feed:big，之后的博客只写入自己的发件箱 feed:outbox:{authorId}，不再推送。
+ * 作者一旦成为大V就不再改回推送，否则已经写入发件箱的博客会从粉丝的时间线中消失。
+ * 读取时按分数倒序滚动分页，游标为上一页最小的时间和该时间已经返回的条数。
+ * 没有关注大V时只读收件箱，一次ZREVRANGEBYSCORE；否则一次管道读取收件箱和所有关注的大V的发件箱，再多路归并。
+ */
+@Slf4j
+@Component
+public class BlogFeed {
+    private static final int FAN_OUT_BATCH_SIZE = 1000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private FollowMapper followMapper;
+
+    @Value("${hmdp.blog.feed.fan-out-threads:2}")
+    private int fanOutThreads;
+    @Value("${hmdp.blog.feed.big-author-followers:10000}")
+    private long bigAuthorFollowers;
+    @Value("${hmdp.blog.feed.inbox-max-size:1000}")
+    private long inboxMaxSize;
+    @Value("${hmdp.blog.feed.outbox-max-size:1000}")
+    private long outboxMaxSize;
+    @Value("${hmdp.blog.feed.big-author-refresh-seconds:30}")
+    private long bigAuthorRefreshSeconds;
+
+    private ExecutorService fanOutExecutor;
+//    大V的id在本地保存一份，读取时先判断是否需要归并
+    private volatile Set<Long> bigAuthors = Collections.emptySet();
+    private final ScheduledExecutorService refreshExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "blog-feed-big-author-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LongAdder pushedBlogs = new LongAdder();
+    private final LongAdder pushedInboxes = new LongAdder();
+    private final LongAdder pushMillis = new LongAdder();
+    private final AtomicLong maxPushMillis = new AtomicLong();
+    private final LongAdder outboxBlogs = new LongAdder();
+    private final LongAdder fanOutFailed = new LongAdder();
+    private final LongAdder inboxReads = new LongAdder();
+    private final LongAdder mergedReads = new LongAdder();
+    private final LongAdder mergedOutboxes = new LongAdder();
+
+    @PostConstruct
+    private void init(){
+        AtomicInteger sequence = new AtomicInteger();
+        fanOutExecutor = Executors.newFixedThreadPool(fanOutThreads, r -> {
+            Thread thread = new Thread(r, "blog-feed-fan-out-" + sequence.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        refreshExecutor.scheduleWithFixedDelay(this::refreshBigAuthors, 0, bigAuthorRefreshSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 等待已提交的推送执行完，最多等待10秒
+     */
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        refreshExecutor.shutdownNow();
+        fanOutExecutor.shutdown();
+        if (!fanOutExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.warn("博客推送未在10秒内完成，剩余{}个任务被丢弃", fanOutExecutor.shutdownNow().size());
+        }
+    }
+
+    /**
+     * 发布博客：普通作者推送到所有粉丝的收件箱，大V只写入自己的发件箱
+     */
+    public void publish(Long authorId, Long blogId){
+        long publishTime = System.currentTimeMillis();
+        fanOutExecutor.execute(() -> {
+            try {
+                if (isBigAuthor(authorId)) {
+                    writeOutbox(authorId, blogId, publishTime);
+                } else {
+                    fanOut(authorId, blogId, publishTime);
+                }
+            } catch (Exception e) {
+                fanOutFailed.increment();
+                log.error("推送博客{}失败", blogId, e);
+            }
+        });
+    }
+
+    /**
+     * 滚动分页读取关注的人发布的博客
+     * @param max 上一页最小的时间，第一页传当前时间
+     * @param offset 上一页中与最小时间相同的条数，这些博客需要跳过，第一页传0
+     * @return list为博客id，minTime、offset为下一页的游标
+     */
+    public ScrollResult read(Long userId, long max, int offset, int size){
+        List<Long> authors = followedBigAuthors(userId);
+        if (authors.isEmpty()) {
+            inboxReads.increment();
+            return readInbox(userId, max, offset, size);
+        }
+        mergedReads.increment();
+        mergedOutboxes.add(authors.size());
+        return readMerged(userId, authors, max, offset, size);
+    }
+
+    public Map<String, Object> getStats(){
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long pushed = pushedBlogs.sum();
+        stats.put("bigAuthors", bigAuthors.size());
+        stats.put("pushedBlogs", pushed);
+        stats.put("pushedInboxes", pushedInboxes.sum());
+        stats.put("avgPushMillis", pushed == 0 ? 0 : pushMillis.sum() / pushed);
+        stats.put("maxPushMillis", maxPushMillis.get());
+        stats.put("outboxBlogs", outboxBlogs.sum());
+        stats.put("fanOutFailed", fanOutFailed.sum());
+        stats.put("inboxReads", inboxReads.sum());
+        stats.put("mergedReads", mergedReads.sum());
+        stats.put("mergedOutboxes", mergedOutboxes.sum());
+        return stats;
+    }
+
+    private ScrollResult readInbox(Long userId, long max, int offset, int size){
+        Set<ZSetOperations.TypedTuple<String>> tuples = stringRedisTemplate.opsForZSet()
+                .reverseRangeByScoreWithScores(FEED_KEY + userId, 0, max, offset, size);
+        List<Entry> entries = new ArrayList<>(tuples == null ? 0 : tuples.size());
+        if (tuples != null) {
+            for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+                entries.add(new Entry(tuple.getValue(), tuple.getScore().longValue()));
+            }
+        }
+        return scrollResult(entries, max, offset);
+    }
+
+//    每个来源最多取 offset+size 条，归并后先跳过上一页已经返回的offset条，同分数的顺序与ZREVRANGEBYSCORE一致（成员倒序）
+    @SuppressWarnings("unchecked")
+    private ScrollResult readMerged(Long userId, List<Long> authors, long max, int offset, int size){
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            stringConnection.zRevRangeByScoreWithScores(FEED_KEY + userId, 0, max, 0, offset + size);
+            for (Long author : authors) {
+                stringConnection.zRevRangeByScoreWithScores(FEED_OUTBOX_KEY + author, 0, max, 0, offset + size);
+            }
+            return null;
+        });
+        List<Set<ZSetOperations.TypedTuple<String>>> sources = new ArrayList<>(results.size());
+        for (Object result : results) {
+            if (result instanceof Set) {
+                sources.add((Set<ZSetOperations.TypedTuple<String>>) result);
+            }
+        }
+        return merge(sources, max, offset, size);
+    }
+
+    /**
+     * 多路归并收件箱和发件箱，每一路都是按分数倒序、同分数成员倒序的 ZREVRANGEBYSCORE 结果
+     * <p>
+     * 同一篇博客出现在多路中时只返回一次；跳过的offset条是去重后时间等于max的博客，与上一页的计数方式一致
+     */
+    static ScrollResult merge(List<Set<ZSetOperations.TypedTuple<String>>> sources, long max, int offset, int size){
+        PriorityQueue<Source> heap = new PriorityQueue<>(Math.max(1, sources.size()));
+        for (Set<ZSetOperations.TypedTuple<String>> tuples : sources) {
+            if (tuples != null && !tuples.isEmpty()) {
+                List<Entry> entries = new ArrayList<>(tuples.size());
+                for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+                    entries.add(new Entry(tuple.getValue(), tuple.getScore().longValue()));
+                }
+                heap.add(new Source(entries));
+            }
+        }
+        List<Entry> page = new ArrayList<>(size);
+        Set<String> seen = new HashSet<>();
+        int skipped = 0;
+        while (!heap.isEmpty() && page.size() < size) {
+            Source source = heap.poll();
+            Entry entry = source.next();
+            if (source.hasNext()) {
+                heap.add(source);
+            }
+            if (!seen.add(entry.member)) {
+                continue;
+            }
+            if (skipped < offset && entry.time == max) {
+                skipped++;
+                continue;
+            }
+            page.add(entry);
+        }
+        return scrollResult(page, max, offset);
+    }
+
+    private static ScrollResult scrollResult(List<Entry> entries, long max, int offset){
+        ScrollResult result = new ScrollResult();
+        if (entries.isEmpty()) {
+            result.setList(Collections.emptyList());
+            result.setMinTime(max);
+            result.setOffset(offset);
+            return result;
+        }
+        List<Long> ids = new ArrayList<>(entries.size());
+        long minTime = 0;
+        int sameTime = 0;
+        for (Entry entry : entries) {
+            ids.add(Long.valueOf(entry.member));
+            if (entry.time == minTime) {
+                sameTime++;
+            } else {
+                minTime = entry.time;
+                sameTime = 1;
+            }
+        }
+//        整页的时间都等于max时，还要加上之前已经跳过的条数
+        result.setList(ids);
+        result.setMinTime(minTime);
+        result.setOffset(minTime == max ? sameTime + offset : sameTime);
+        return result;
+    }
+
+//    关注的人中哪些是大V，SMISMEMBER follows:{userId} 一次判断所有大V
+    private List<Long> followedBigAuthors(Long userId){
+        Set<Long> authors = bigAuthors;
+        if (authors.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Long> candidates = new ArrayList<>(authors);
+        Map<Object, Boolean> members = stringRedisTemplate.opsForSet()
+                .isMember(FOLLOWS_KEY + userId, candidates.stream().map(String::valueOf).toArray());
+        List<Long> followed = new ArrayList<>();
+        if (members != null) {
+            for (Long author : candidates) {
+                if (Boolean.TRUE.equals(members.get(author.toString()))) {
+                    followed.add(author);
+                }
+            }
+        }
+        return followed;
+    }
+
+    private boolean isBigAuthor(Long authorId){
+        if (bigAuthors.contains(authorId)
+                || Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(FEED_BIG_AUTHORS_KEY, authorId.toString()))) {
+            return true;
+        }
+        Integer followers = followMapper.selectCount(new QueryWrapper<Follow>().eq("follow_user_id", authorId));
+        if (followers == null || followers < bigAuthorFollowers) {
+            return false;
+        }
+        stringRedisTemplate.opsForSet().add(FEED_BIG_AUTHORS_KEY, authorId.toString());
+        log.info("用户{}的粉丝数{}达到阈值，博客改为写入发件箱", authorId, followers);
+        refreshBigAuthors();
+        return true;
+    }
+
+    private void refreshBigAuthors(){
+        try {
+            Set<String> members = stringRedisTemplate.opsForSet().members(FEED_BIG_AUTHORS_KEY);
+            Set<Long> authors = new HashSet<>();
+            if (members != null) {
+                for (String member : members) {
+                    authors.add(Long.valueOf(member));
+                }
+            }
+            bigAuthors = authors;
+        } catch (Exception e) {
+            log.error("刷新大V列表失败", e);
+        }
+    }
+
+    private void writeOutbox(Long authorId, Long blogId, long publishTime){
+        String key = FEED_OUTBOX_KEY + authorId;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            stringConnection.zAdd(key, publishTime, blogId.toString());
+            stringConnection.zRemRange(key, 0, -outboxMaxSize - 1);
+            return null;
+        });
+        outboxBlogs.increment();
+    }
+
+//    每个收件箱ZADD后裁剪到 inbox-max-size 条
+    private void fanOut(Long authorId, Long blogId, long publishTime){
+        long start = System.currentTimeMillis();
+        String member = blogId.toString();
+        long lastId = 0;
+        long total = 0;
+        while (true) {
+            List<Follow> follows = followMapper.selectList(new QueryWrapper<Follow>()
+                    .select("id", "user_id").eq("follow_user_id", authorId)
+                    .gt("id", lastId).orderByAsc("id").last("LIMIT " + FAN_OUT_BATCH_SIZE));
+            if (!follows.isEmpty()) {
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                    for (Follow follow : follows) {
+                        String key = FEED_KEY + follow.getUserId();
+                        stringConnection.zAdd(key, publishTime, member);
+                        stringConnection.zRemRange(key, 0, -inboxMaxSize - 1);
+                    }
+                    return null;
+                });
+                lastId = follows.get(follows.size() - 1).getId();
+                total += follows.size();
+            }
+            if (follows.size() < FAN_OUT_BATCH_SIZE) {
+                break;
+            }
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        pushedBlogs.increment();
+        pushedInboxes.add(total);
+        pushMillis.add(elapsed);
+        maxPushMillis.accumulateAndGet(elapsed, Math::max);
+        log.debug("博客{}推送给{}个粉丝，耗时{}ms", blogId, total, elapsed);
+    }
+
+    private static final class Entry {
+        final String member;
+        final long time;
+
+        Entry(String member, long time) {
+            this.member = member;
+            this.time = time;
+        }
+    }
+
+//    归并中的一路，按当前元素排序：时间大的在前，时间相同时成员大的在前
+    private static final class Source implements Comparable<Source> {
+        final List<Entry> entries;
+        int position;
+
+        Source(List<Entry> entries) {
+            this.entries = entries;
+        }
+
+        boolean hasNext() {
+            return position < entries.size();
+        }
+
+        Entry next() {
+            return entries.get(position++);
+        }
+
+        @Override
+        public int compareTo(Source other) {
+            Entry a = entries.get(position);
+            Entry b = other.entries.get(other.position);
+            if (a.time != b.time) {
+                return Long.compare(b.time, a.time);
+            }
+            return b.member.compareTo(a.member);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Blog;
+import com.hmdp.mapper.BlogMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisPipelineException;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.BLOG_HOT_BUILDING_KEY;
+import static com.hmdp.utils.RedisConstants.BLOG_HOT_EPOCH_KEY;
+import static com.hmdp.utils.RedisConstants.BLOG_HOT_KEY;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+
+/**
+ * 热门博客排行
+ * <p>
+ * ZSET blog:{hot} 保存博客id，分数为按时间衰减的点赞数，由点赞、取消点赞事件通过hot_like.lua增量更新；
+ * 分页直接ZREVRANGE，不再按liked排序扫描tb_blog。排行为空时从tb_blog构建一次，每个点赞按 blog:liked:{id} 中记录的点赞时间计算权重，
+ * 与取消点赞时扣除的权重一致；从旧SET转换来的点赞（点赞时间记为0）不知道点赞时间，构建和取消点赞时都按发布时间计算。
+ * 只保留分数最高的 max-size 篇博客，之后被点赞的博客会重新加入。
+ */
+@Slf4j
+@Component
+public class BlogHotRanking {
+    private static final int LOAD_BATCH_SIZE = 1000;
+    private static final String REBUILD_LOCK_NAME = "blog:hot:rebuild";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private BlogMapper blogMapper;
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+//    点赞的权重每过一个半衰期减半
+    @Value("${hmdp.blog.hot.half-life-hours:24}")
+    private long halfLifeHours;
+    @Value("${hmdp.blog.hot.max-size:10000}")
+    private long maxSize;
+
+    private final ScheduledExecutorService trimExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "blog-hot-trim");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    private void init(){
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(BLOG_HOT_KEY))) {
+//            多个节点同时启动时只由一个节点构建
+            ILock lock = new SimpleRedisLock(REBUILD_LOCK_NAME, stringRedisTemplate, redisScriptRegistry);
+            if (lock.tryLock(300L)) {
+                try {
+                    rebuild();
+                } finally {
+                    lock.unLock();
+                }
+            }
+        }
+        trimExecutor.scheduleWithFixedDelay(this::trim, 1, 1, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        trimExecutor.shutdownNow();
+    }
+
+    /**
+     * 点赞或取消点赞后更新排行
+     * @param liked true为点赞，false为取消点赞
+     * @param likeTime 点赞时间，取消点赞时为原来点赞的时间，用于扣除当时加上的权重
+     */
+    public void onLike(Long blogId, boolean liked, long likeTime){
+        if (likeTime <= 0) {
+//            点赞时间未知，与构建时一样按发布时间计算权重
+            Blog blog = blogMapper.selectOne(new QueryWrapper<Blog>().select("id", "create_time").eq("id", blogId));
+            likeTime = blog == null || blog.getCreateTime() == null ? 0 : toEpochMilli(blog);
+        }
+        redisScriptRegistry.execute("hot_like", Arrays.asList(RedisScriptRegistry.arg(BLOG_HOT_KEY), RedisScriptRegistry.arg(BLOG_HOT_EPOCH_KEY)),
+                RedisScriptRegistry.arg(blogId), RedisScriptRegistry.arg(liked ? 1 : -1), RedisScriptRegistry.arg(likeTime),
+                RedisScriptRegistry.arg(System.currentTimeMillis()), RedisScriptRegistry.arg(halfLifeMillis()));
+    }
+
+    /**
+     * 新发布的博客以0分加入排行，获得点赞后上升
+     */
+    public void add(Long blogId){
+        stringRedisTemplate.opsForZSet().addIfAbsent(BLOG_HOT_KEY, blogId.toString(), 0);
+    }
+
+    /**
+     * 按排名分页查询博客id
+     * @param current 页码，从1开始
+     */
+    public List<Long> pageIds(int current, int size){
+        long start = (long) (Math.max(current, 1) - 1) * size;
+        Set<String> members = stringRedisTemplate.opsForZSet().reverseRange(BLOG_HOT_KEY, start, start + size - 1);
+        if (members == null || members.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Long> ids = new ArrayList<>(members.size());
+        for (String member : members) {
+            ids.add(Long.valueOf(member));
+        }
+        return ids;
+    }
+
+//    在临时key中分批写入后RENAME，构建过程中读请求看到的仍是完整的旧排行（或空排行）
+    private void rebuild(){
+        stringRedisTemplate.opsForValue().setIfAbsent(BLOG_HOT_EPOCH_KEY, String.valueOf(System.currentTimeMillis()));
+        long epoch = Long.parseLong(stringRedisTemplate.opsForValue().get(BLOG_HOT_EPOCH_KEY));
+        double halfLife = halfLifeMillis();
+        stringRedisTemplate.delete(BLOG_HOT_BUILDING_KEY);
+        long lastId = 0;
+        long total = 0;
+        while (true) {
+            List<Blog> blogs = blogMapper.selectList(new QueryWrapper<Blog>()
+                    .select("id", "liked", "create_time").gt("id", lastId).orderByAsc("id").last("LIMIT " + LOAD_BATCH_SIZE));
+            if (!blogs.isEmpty()) {
+                List<Object> likeTimes = likeTimes(blogs);
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                    for (int i = 0; i < blogs.size(); i++) {
+                        Blog blog = blogs.get(i);
+                        long createMillis = blog.getCreateTime() == null ? epoch : toEpochMilli(blog);
+                        double score = score(blog, i < likeTimes.size() ? likeTimes.get(i) : null, createMillis, epoch, halfLife);
+                        stringConnection.zAdd(BLOG_HOT_BUILDING_KEY, score, blog.getId().toString());
+                    }
+                    return null;
+                });
+                lastId = blogs.get(blogs.size() - 1).getId();
+                total += blogs.size();
+            }
+            if (blogs.size() < LOAD_BATCH_SIZE) {
+                break;
+            }
+        }
+        if (total > 0) {
+            stringRedisTemplate.rename(BLOG_HOT_BUILDING_KEY, BLOG_HOT_KEY);
+            trim();
+        }
+        log.info("热门博客排行构建完成，博客数:{}", total);
+    }
+
+//    ZRANGE blog:liked:{id} 0 -1 WITHSCORES 读取一批博客的全部点赞时间；还没有转换的旧SET对应位置是异常
+    private List<Object> likeTimes(List<Blog> blogs){
+        try {
+            return stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                for (Blog blog : blogs) {
+                    stringConnection.zRangeWithScores(BLOG_LIKED_KEY + blog.getId(), 0, -1);
+                }
+                return null;
+            });
+        } catch (RedisPipelineException e) {
+            return e.getPipelineResult();
+        }
+    }
+
+//    与hot_like.lua相同的权重：每个点赞 2^((点赞时间 - 基准时间) / 半衰期)，点赞时间未知（0或旧SET）时用发布时间
+//    没有点赞记录（旧SET或Redis中不存在）时按tb_blog的点赞数和发布时间计算
+    private static double score(Blog blog, Object likeTimes, long createMillis, long epoch, double halfLife){
+        if (!(likeTimes instanceof Set) || ((Set<?>) likeTimes).isEmpty()) {
+            long liked = blog.getLiked() == null ? 0 : blog.getLiked();
+            return liked * Math.pow(2, (createMillis - epoch) / halfLife);
+        }
+        double score = 0;
+        for (Object tuple : (Set<?>) likeTimes) {
+            Double likeTime = tuple instanceof ZSetOperations.TypedTuple ? ((ZSetOperations.TypedTuple<?>) tuple).getScore()
+                    : tuple instanceof RedisZSetCommands.Tuple ? ((RedisZSetCommands.Tuple) tuple).getScore() : null;
+            long time = likeTime == null || likeTime <= 0 ? createMillis : likeTime.longValue();
+            score += Math.pow(2, (time - epoch) / halfLife);
+        }
+        return score;
+    }
+
+    private static long toEpochMilli(Blog blog){
+        return blog.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private void trim(){
+        try {
+            stringRedisTemplate.opsForZSet().removeRange(BLOG_HOT_KEY, 0, -maxSize - 1);
+        } catch (Exception e) {
+            log.error("裁剪热门博客排行失败", e);
+        }
+    }
+
+    private long halfLifeMillis(){
+        return TimeUnit.HOURS.toMillis(halfLifeHours);
+    }
+}
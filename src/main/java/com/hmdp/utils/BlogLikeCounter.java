@@ -0,0 +1,130 @@
+package com.hmdp.utils;
+
+import com.hmdp.mapper.BlogMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisPipelineException;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKE_DELTA_KEY;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKE_FLUSHING_KEY;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKE_RECONCILE_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_KEY;
+
+/**
+ * 博客点赞数的延迟写入
+ * <p>
+ * 点赞时只在Redis的 blog:like:{delta} 中HINCRBY增量，不再逐次UPDATE tb_blog，
+ * 由 {@link DeltaFlusher} 定时用 UPDATE ... CASE 分批写入数据库。
+ * 重复写入由定时对账修正：用 ZCARD blog:liked:{id} 减去尚未写入的增量得到准确的点赞数。
+ */
+@Slf4j
+@Component
+public class BlogLikeCounter {
+    private static final String FLUSH_LOCK_NAME = "blog:like:flush";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private BlogMapper blogMapper;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    @Value("${hmdp.blog.like.flush-interval-millis:5000}")
+    private long flushIntervalMillis;
+    @Value("${hmdp.blog.like.batch-size:500}")
+    private int batchSize;
+//    对账间隔，0表示不对账
+    @Value("${hmdp.blog.like.reconcile-interval-seconds:600}")
+    private long reconcileIntervalSeconds;
+
+    private DeltaFlusher flusher;
+
+    @PostConstruct
+    private void init(){
+        flusher = new DeltaFlusher(FLUSH_LOCK_NAME, BLOG_LIKE_DELTA_KEY, BLOG_LIKE_FLUSHING_KEY, BLOG_LIKE_RECONCILE_KEY,
+                stringRedisTemplate, redisScriptRegistry, new DeltaFlusher.Handler() {
+            @Override
+            public Collection<String> apply(Map<String, Long> deltas) {
+                return applyDeltas(deltas);
+            }
+
+            @Override
+            public void reconcile(List<String> members) {
+                reconcileBlogs(members.stream().map(Long::valueOf).collect(Collectors.toList()));
+            }
+        });
+        flusher.start("blog-like-flusher", flushIntervalMillis, batchSize, reconcileIntervalSeconds);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        flusher.stop();
+    }
+
+    /**
+     * 记录一次点赞或取消点赞
+     * @param delta 1为点赞，-1为取消点赞
+     */
+    public void increment(Long blogId, long delta){
+        flusher.increment(blogId.toString(), delta);
+    }
+
+    private Collection<String> applyDeltas(Map<String, Long> deltas){
+        Map<Long, Long> likes = new LinkedHashMap<>();
+        deltas.forEach((id, delta) -> likes.put(Long.valueOf(id), delta));
+        blogMapper.addLikedBatch(likes);
+        likes.keySet().forEach(id -> cacheClient.delete(CACHE_BLOG_KEY + id));
+        return new ArrayList<>(deltas.keySet());
+    }
+
+//    点赞数 = 点赞用户数 - 还在Redis中未写入的增量
+    private void reconcileBlogs(List<Long> ids){
+        List<Object> results;
+        try {
+            results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                for (Long id : ids) {
+                    stringConnection.zCard(BLOG_LIKED_KEY + id);
+                    stringConnection.hGet(BLOG_LIKE_DELTA_KEY, id.toString());
+                }
+                return null;
+            });
+        } catch (RedisPipelineException e) {
+//            还没有转换的旧SET会返回WRONGTYPE，跳过这些博客
+            results = e.getPipelineResult();
+        }
+        Map<Long, Long> likes = new LinkedHashMap<>();
+        for (int i = 0; i < ids.size() && 2 * i + 1 < results.size(); i++) {
+            Object count = results.get(2 * i);
+            Object pending = results.get(2 * i + 1);
+            if (!(count instanceof Long)) {
+                continue;
+            }
+            long pendingDelta = pending == null || pending instanceof Exception ? 0 : Long.parseLong(pending.toString());
+            likes.put(ids.get(i), Math.max(0, (Long) count - pendingDelta));
+        }
+        if (likes.isEmpty()) {
+            return;
+        }
+        blogMapper.updateLikedBatch(likes);
+        likes.keySet().forEach(id -> cacheClient.delete(CACHE_BLOG_KEY + id));
+        log.debug("对账{}篇博客的点赞数", likes.size());
+    }
+}
@@ -0,0 +1,218 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.service.IService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 布隆过滤器，用来在查询Redis和数据库之前拦截一定不存在的id，防止缓存穿透
+ * <p>
+ * 位数组保存在本地内存中；开启Redis镜像后，新增的id同时写入Redis的bitmap，
+ * 本地判断不存在时再去Redis确认一次，这样其他节点新增的数据也能被识别。
+ * 镜像模式下位数和哈希函数个数由第一个启动的节点写入 {redisKey}:params（SETNX），其他节点直接使用，
+ * 保证所有节点对同一个id算出相同的位置。参数确定后不会随数据量增长，加载的id超过容量时会打印警告，
+ * 此时需要删除 {redisKey} 和 {redisKey}:params 后滚动重启，让过滤器按新的数据量重建。
+ */
+@Slf4j
+public class BloomFilter {
+//    启动时分批从数据库读取id的批次大小
+    private static final int LOAD_BATCH_SIZE = 5000;
+
+    private final AtomicLongArray bits;
+    private final long bitSize;
+    private final int hashCount;
+    private final String redisKey;
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * @param expectedInsertions 预计元素数量，超过后误判率会上升
+     * @param fpp 期望的误判率，例如0.01
+     * @param redisKey Redis镜像的bitmap key，为null时不镜像
+     */
+    public BloomFilter(long expectedInsertions, double fpp, String redisKey, StringRedisTemplate stringRedisTemplate) {
+        this(resolveParams(expectedInsertions, fpp, redisKey, stringRedisTemplate), redisKey, stringRedisTemplate);
+    }
+
+    private BloomFilter(long[] params, String redisKey, StringRedisTemplate stringRedisTemplate) {
+        this.bitSize = params[0];
+        this.hashCount = (int) params[1];
+        this.bits = new AtomicLongArray((int) (bitSize / 64));
+        this.redisKey = redisKey;
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+//    按预计数量算出位数和哈希函数个数；镜像模式下以Redis中已保存的参数为准
+    private static long[] resolveParams(long expectedInsertions, double fpp, String redisKey, StringRedisTemplate stringRedisTemplate) {
+        long n = Math.max(1, expectedInsertions);
+//        m = -n*ln(p)/(ln2)^2，k = m/n*ln2
+        long m = (long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        long bitSize = Math.max(64, (m + 63) / 64 * 64);
+        long hashCount = Math.max(1, Math.round((double) bitSize / n * Math.log(2)));
+        if (redisKey == null) {
+            return new long[]{bitSize, hashCount};
+        }
+        String paramsKey = redisKey + ":params";
+        stringRedisTemplate.opsForValue().setIfAbsent(paramsKey, bitSize + ":" + hashCount);
+        String stored = stringRedisTemplate.opsForValue().get(paramsKey);
+        if (stored == null) {
+            throw new IllegalStateException("读取布隆过滤器参数失败,key:" + paramsKey);
+        }
+        String[] parts = stored.split(":");
+        long storedBitSize = Long.parseLong(parts[0]);
+        long storedHashCount = Long.parseLong(parts[1]);
+        if (storedBitSize != bitSize || storedHashCount != hashCount) {
+            log.info("布隆过滤器{}使用Redis中已保存的参数,位数:{},哈希函数个数:{}", redisKey, storedBitSize, storedHashCount);
+        }
+        return new long[]{storedBitSize, storedHashCount};
+    }
+
+    public void put(long id) {
+        long[] indexes = indexes(id);
+        for (long index : indexes) {
+            setLocal(index);
+        }
+        if (redisKey != null) {
+//            SETBIT bloom:{name} index 1，一次管道写入
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                for (long index : indexes) {
+                    stringConnection.setBit(redisKey, index, true);
+                }
+                return null;
+            });
+        }
+    }
+
+    public boolean mightContain(long id) {
+        long[] indexes = indexes(id);
+        boolean contains = true;
+        for (long index : indexes) {
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                contains = false;
+                break;
+            }
+        }
+        if (contains || redisKey == null) {
+            return contains;
+        }
+//        本地不存在时到Redis镜像中确认，可能是其他节点新增的数据
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (long index : indexes) {
+                stringConnection.getBit(redisKey, index);
+            }
+            return null;
+        });
+        for (Object result : results) {
+            if (!Boolean.TRUE.equals(result)) {
+                return false;
+            }
+        }
+        for (long index : indexes) {
+            setLocal(index);
+        }
+        return true;
+    }
+
+    /**
+     * 按id分批扫描整张表，把所有id加入过滤器（只写本地），开启镜像时最后把整个位数组合并到Redis
+     */
+    public <T> void loadIds(IService<T> service) {
+        long lastId = 0;
+        long total = 0;
+        while (true) {
+            List<Object> ids = service.listObjs(new QueryWrapper<T>()
+                    .select("id").gt("id", lastId).orderByAsc("id").last("LIMIT " + LOAD_BATCH_SIZE));
+            total += ids.size();
+            for (Object id : ids) {
+                lastId = ((Number) id).longValue();
+                for (long index : indexes(lastId)) {
+                    setLocal(index);
+                }
+            }
+            if (ids.size() < LOAD_BATCH_SIZE) {
+                break;
+            }
+        }
+        if (total > capacity()) {
+            log.warn("布隆过滤器{}已加载{}个id，超过容量{}，误判率会上升，需要重建", redisKey, total, capacity());
+        }
+        if (redisKey != null) {
+            mergeToRedis();
+        }
+    }
+
+    public long bitSize() {
+        return bitSize;
+    }
+
+    public int hashCount() {
+        return hashCount;
+    }
+
+    /**
+     * 按当前位数和哈希函数个数反推的容量 n = m*ln2/k，超过后误判率高于创建时的期望值
+     */
+    public long capacity() {
+        return (long) (bitSize * Math.log(2) / hashCount);
+    }
+
+    public long memoryBytes() {
+        return bitSize / 8;
+    }
+
+//    SET临时key后 BITOP OR 合并，多个节点同时启动也不会互相覆盖
+    private void mergeToRedis() {
+        byte[] bytes = new byte[(int) (bitSize / 8)];
+        for (long index = 0; index < bitSize; index++) {
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) != 0) {
+//                Redis bitmap中第0位是第一个字节的最高位
+                bytes[(int) (index >>> 3)] |= (byte) (0x80 >>> (index & 7));
+            }
+        }
+        byte[] key = redisKey.getBytes(StandardCharsets.UTF_8);
+        byte[] tmpKey = (redisKey + ":tmp:" + System.nanoTime()).getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.stringCommands().set(tmpKey, bytes);
+            connection.stringCommands().bitOp(RedisStringCommands.BitOperation.OR, key, key, tmpKey);
+            connection.keyCommands().del(tmpKey);
+            return null;
+        });
+    }
+
+    private void setLocal(long index) {
+        int slot = (int) (index >>> 6);
+        long mask = 1L << index;
+        if ((bits.get(slot) & mask) == 0) {
+            bits.accumulateAndGet(slot, mask, (a, b) -> a | b);
+        }
+    }
+
+//    双重哈希：由一个64位哈希拆出两个32位哈希，组合出k个位置
+    private long[] indexes(long id) {
+        long hash = mix64(id);
+        long hash1 = hash & 0xFFFFFFFFL;
+        long hash2 = hash >>> 32;
+        long[] indexes = new long[hashCount];
+        for (int i = 0; i < hashCount; i++) {
+            long combined = hash1 + i * hash2;
+            indexes[i] = (combined & Long.MAX_VALUE) % bitSize;
+        }
+        return indexes;
+    }
+
+//    MurmurHash3的fmix64
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+}
@@ -1,17 +1,28 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import com.hmdp.entity.Shop;
 import lombok.extern.log4j.Log4j2;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
@@ -21,35 +32,125 @@ import static com.hmdp.utils.RedisConstants.*;
 @Component
 public class CacheClient {
     private final StringRedisTemplate stringRedisTemplate;
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+//    缓存值的编解码方式，由hmdp.cache.codec配置
+    private final CacheCodec cacheCodec;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private CacheRebuildScheduler cacheRebuildScheduler;
+
+//    一级缓存（进程内），按key前缀分别配置，未配置的前缀直接访问Redis
+    private final Map<String, LocalCache<Object>> nearCaches = new ConcurrentHashMap<>();
+//    布隆过滤器，按key前缀配置，查询Redis和数据库之前先判断id是否可能存在
+    private final Map<String, BloomFilter> bloomFilters = new ConcurrentHashMap<>();
+//    通过queryWithLogicalExpire读取的key前缀，批量查询写回时也要写入逻辑过期时间
+    private final Set<String> logicalExpirePrefixes = ConcurrentHashMap.newKeySet();
+//    同一节点上同一个key的并发缓存未命中只查一次数据库
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, CacheCodec cacheCodec) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheCodec = cacheCodec;
+    }
+
+//    订阅缓存失效消息，其他节点删除缓存时同步清除本节点的一级缓存
+    @PostConstruct
+    private void init(){
+        redisMessageListenerContainer.addMessageListener(this::onInvalidate, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 为某个key前缀开启一级缓存
+     * @param keyPrefix key前缀，例如 cache:shop:
+     * @param maxSize 最多缓存的条数
+     * @param ttl 一级缓存的存活时间，应远小于Redis中的过期时间
+     */
+    public void registerNearCache(String keyPrefix, int maxSize, long ttl, TimeUnit unit){
+        nearCaches.put(keyPrefix, new LocalCache<>(maxSize, ttl, unit));
+    }
+
+    /**
+     * 为某个key前缀注册布隆过滤器，之后该前缀下一定不存在的id会在查询Redis之前被拦截
+     */
+    public void registerBloomFilter(String keyPrefix, BloomFilter bloomFilter){
+        bloomFilters.put(keyPrefix, bloomFilter);
+    }
+
+    /**
+     * 声明某个key前缀通过 {@link #queryWithLogicalExpire} 读取，批量查询写回Redis时同时写入逻辑过期时间，
+     * 否则单条查询读到的过期时间为0，刚加载的数据也会触发一次重建。第一次单条查询时也会自动登记
+     */
+    public void registerLogicalExpire(String keyPrefix){
+        logicalExpirePrefixes.add(keyPrefix);
+    }
+
+    /**
+     * 新增数据后把id加入对应的布隆过滤器
+     */
+    public void addToBloomFilter(String keyPrefix, Long id){
+        BloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if (bloomFilter != null && id != null) {
+            bloomFilter.put(id);
+        }
+    }
+
+    /**
+     * id是否可能存在，未注册布隆过滤器或id不是数字时总是返回true
+     */
+    public boolean mightContain(String keyPrefix, Object id){
+        BloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if (bloomFilter == null || !(id instanceof Number)) {
+            return true;
+        }
+        return bloomFilter.mightContain(((Number) id).longValue());
     }
+
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        byte[] bytes = cacheCodec.encode(value, 0);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.stringCommands().set(rawKey(key), bytes, Expiration.from(time, unit), RedisStringCommands.SetOption.upsert()));
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit){
-//        设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+//        设置逻辑过期，过期时间由编解码器写入
+        byte[] bytes = cacheCodec.encode(value, System.currentTimeMillis() + unit.toMillis(time));
 //        写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.stringCommands().set(rawKey(key), bytes));
+    }
+
+//    删除缓存，并通知所有节点清除一级缓存
+    public void delete(String key){
+        stringRedisTemplate.delete(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
     }
 
     //     解决缓存穿透的代码
     public <R,ID> R queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
         String key = keyPrefix + id;
+//        布隆过滤器判断一定不存在，直接返回，不访问Redis和数据库
+        if (!mightContain(keyPrefix, id)) {
+            return null;
+        }
+//        0.先查一级缓存
+        LocalCache<Object> nearCache = nearCaches.get(keyPrefix);
+        if (nearCache != null) {
+            Object cached = nearCache.get(key);
+            if (type.isInstance(cached)) {
+                return type.cast(cached);
+            }
+        }
         //        1.从redis中查询商铺id
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getRaw(key);
 //        2. 判断是否存在
-        if (StrUtil.isNotBlank(json)) {
+        if (bytes != null && bytes.length > 0) {
             //        3.存在，直接返回
-            return JSONUtil.toBean(json, type);
+            R r = cacheCodec.decode(bytes, type);
+            putNearCache(nearCache, key, r);
+            return r;
         }
 //        为防止缓存穿透，当命中后查看是否为空值
-        if (json != null){
+        if (bytes != null){
 //            返回错误信息
             return null;
         }
@@ -61,83 +162,378 @@ public class CacheClient {
         if (r == null){
 //            为防止redis缓存穿透问题，当查询的数据在数据库不存在时，将空值写入redis中，并返回false
 //            需要使用用户传入的时间
-            stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
+            stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
 //            返回错误信息
             return null;
         }
 //        6.存在，写入redis
         this.set(key,r,time,unit);
+        putNearCache(nearCache, key, r);
 //        返回
         return r;
     }
 
+    //    互斥锁解决缓存击穿：节点内用SingleFlight合并并发请求，节点间用Redis互斥锁，不再休眠重试
+    public <R,ID> R queryWithMutex(
+            String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        String key = keyPrefix + id;
+//        布隆过滤器判断一定不存在，直接返回，不访问Redis和数据库
+        if (!mightContain(keyPrefix, id)) {
+            return null;
+        }
+//        0.先查一级缓存
+        LocalCache<Object> nearCache = nearCaches.get(keyPrefix);
+        if (nearCache != null) {
+            Object cached = nearCache.get(key);
+            if (type.isInstance(cached)) {
+                return type.cast(cached);
+            }
+        }
+//        1.从redis中查询
+        byte[] bytes = getRaw(key);
+        if (bytes != null && bytes.length > 0) {
+            R r = cacheCodec.decode(bytes, type);
+            putNearCache(nearCache, key, r);
+            return r;
+        }
+//        2.命中空值，说明数据不存在
+        if (bytes != null){
+            return null;
+        }
+//        3.未命中，同一个key在本节点只有一个线程去重建，其他线程共享同一个结果
+        R r = singleFlight.execute(key, () -> rebuildWithMutex(key, id, type, dbFallback, time, unit));
+        putNearCache(nearCache, key, r);
+        return r;
+    }
+
+    private <R,ID> R rebuildWithMutex(
+            String key, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+//        4.获取互斥锁，保证所有节点中只有一个去查询数据库并写入Redis
+        String lockKey = LOCK_KEY_PREFIX + key;
+        if (tryLock(lockKey)) {
+            try {
+//                获取锁后再次查询redis中是否有值
+                byte[] bytes = getRaw(key);
+                if (bytes != null && bytes.length > 0) {
+                    return cacheCodec.decode(bytes, type);
+                }
+                if (bytes != null) {
+                    return null;
+                }
+                R r = dbFallback.apply(id);
+                if (r == null) {
+                    stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+                    return null;
+                }
+                this.set(key, r, time, unit);
+                return r;
+            } finally {
+                unLock(lockKey);
+            }
+        }
+//        5.其他节点正在重建：先看它是否已经写入，否则本节点直接查库返回（不写缓存），每个节点最多一次数据库查询
+        byte[] bytes = getRaw(key);
+        if (bytes != null && bytes.length > 0) {
+            return cacheCodec.decode(bytes, type);
+        }
+        return dbFallback.apply(id);
+    }
+
     //    逻辑过期解决缓存击穿
     public <R,ID> R queryWithLogicalExpire(
             String keyPrefix,ID id,Class<R> type,Function<ID,R> dbFallback, Long time, TimeUnit unit){
         String key = keyPrefix + id;
+        logicalExpirePrefixes.add(keyPrefix);
+//        布隆过滤器判断一定不存在，直接返回，不访问Redis和数据库
+        if (!mightContain(keyPrefix, id)) {
+            return null;
+        }
+//        0.先查一级缓存，一级缓存中保存的是反序列化后的对象和逻辑过期时间，逻辑过期后走下面的重建流程
+        LocalCache<Object> nearCache = nearCaches.get(keyPrefix);
+        if (nearCache != null) {
+            Object cached = nearCache.get(key);
+            if (cached instanceof LogicalValue) {
+                LogicalValue cachedValue = (LogicalValue) cached;
+                if (cachedValue.expireAt > System.currentTimeMillis() && type.isInstance(cachedValue.data)) {
+                    recordAccess(key, cachedValue.expireAt, id, dbFallback, time, unit, nearCache);
+                    return type.cast(cachedValue.data);
+                }
+            }
+        }
         //        1.从redis中查询商铺id
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getRaw(key);
 //        2. 判断是否存在
-        if (StrUtil.isBlank(json)) {
-//           3. 未命中，返回null
+        if (bytes == null) {
+//           3. 未命中（没有预热，或者批量查询写入的带TTL的数据已过期），同步加载并写入逻辑过期数据
+            R r = singleFlight.execute(key, () -> loadWithLogicalExpire(key, id, dbFallback, time, unit));
+            putNearCache(nearCache, key, r == null ? null : logicalData(r, System.currentTimeMillis() + unit.toMillis(time)));
+            return r;
+        }
+        if (bytes.length == 0) {
+//            空值，数据不存在
             return null;
         }
-//        4. 命中，把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-//        但实际上这个Object的本质是JsonObject,所以可以直接强转
-//        Object data = redisData.getData();
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
-        LocalDateTime expireTime = redisData.getExpireTime();
+//        4. 命中，反序列化为对象，逻辑过期时间与对象一次解码得到
+        CacheCodec.Decoded<R> decoded = cacheCodec.decodeWithExpire(bytes, type);
+        R r = decoded.value;
+        long expireAt = decoded.expireAt;
 //        5. 判断是否过期
 //        过期时间是否在当前时间之后
-        if (expireTime.isAfter(LocalDateTime.now())) {
+        if (expireAt > System.currentTimeMillis()) {
             //        5.1 未过期，直接返回店铺信息
+            putNearCache(nearCache, key, logicalData(r, expireAt));
+            recordAccess(key, expireAt, id, dbFallback, time, unit, nearCache);
             return r;
         }
 //        5.2  已过期，需要缓存重建
 //        6. 缓存重建
 //        6.1 获取互斥锁
-        String lockKey = LOCK_SHOP_KEY+id;
+        String lockKey = LOCK_KEY_PREFIX + key;
         boolean isLock = tryLock(lockKey);
 //        6.2 是否获取锁成功
         if (isLock){
 //        6.3 成功，开启独立线程，进行缓存重建 （无论成功还是失败都需要返回）
 
-//            再次查看是否逻辑过期
-            json = stringRedisTemplate.opsForValue().get(CACHE_SHOP_KEY + id);
-            if (StrUtil.isBlank(json)) {
+//            再次查看是否逻辑过期，只读过期时间，未过期时才解码
+            bytes = getRaw(key);
+            if (bytes == null || bytes.length == 0) {
+                unLock(lockKey);
                 return null;
             }
-            redisData = JSONUtil.toBean(json, RedisData.class);
-            data = (JSONObject) redisData.getData();
-            r = JSONUtil.toBean(data, type);
-            expireTime = redisData.getExpireTime();
-            if (expireTime.isAfter(LocalDateTime.now())) {
+            expireAt = cacheCodec.expireAt(bytes);
+            if (expireAt > System.currentTimeMillis()) {
                 //未过期，直接返回店铺信息
+                unLock(lockKey);
+                r = cacheCodec.decode(bytes, type);
+                putNearCache(nearCache, key, logicalData(r, expireAt));
                 return r;
             }
 
-            CACHE_REBUILD_EXECUTOR.submit(() ->{
+//            交给共用的重建调度器，同一个key只排队一次；队列已满时放弃本次重建，继续返回旧数据
+            boolean submitted = cacheRebuildScheduler.submit(key, () -> {
                 try {
-//                    查询数据库
-                    R r1 = dbFallback.apply(id);
-//                    写入redis
-                    this.setWithLogicalExpire(key,r1,time,unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    rebuildWithLogicalExpire(key, id, dbFallback, time, unit, nearCache);
                 } finally {
                     //                释放锁
                     unLock(lockKey);
                 }
             });
+            if (!submitted) {
+                unLock(lockKey);
+            }
         }
 //        6.4 返回过期的店铺信息
         return r;
     }
 
-    //    创建线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+//    记录访问，热点key在逻辑过期前由调度器主动刷新（需要抢到互斥锁，多个节点只有一个刷新）
+    private <R,ID> void recordAccess(String key, long expireAt, ID id, Function<ID,R> dbFallback,
+                                     Long time, TimeUnit unit, LocalCache<Object> nearCache){
+        cacheRebuildScheduler.recordAccess(key, expireAt, () -> {
+            String lockKey = LOCK_KEY_PREFIX + key;
+            if (!tryLock(lockKey)) {
+                return;
+            }
+            try {
+                rebuildWithLogicalExpire(key, id, dbFallback, time, unit, nearCache);
+            } finally {
+                unLock(lockKey);
+            }
+        });
+    }
+
+    private <R,ID> void rebuildWithLogicalExpire(String key, ID id, Function<ID,R> dbFallback,
+                                                 Long time, TimeUnit unit, LocalCache<Object> nearCache){
+//        查询数据库并写入redis，数据已被删除时写入空值
+        loadWithLogicalExpire(key, id, dbFallback, time, unit);
+        if (nearCache != null) {
+            nearCache.invalidate(key);
+        }
+    }
+
+    private <R,ID> R loadWithLogicalExpire(String key, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        R r = dbFallback.apply(id);
+        if (r == null) {
+            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            return null;
+        }
+        this.setWithLogicalExpire(key, r, time, unit);
+        return r;
+    }
+
+    /**
+     * 批量查询，用于列表接口
+     * <p>
+     * 先查一级缓存，剩下的一次MGET；Redis中也没有的id用一次 WHERE id IN (...) 查询数据库，
+     * 再用管道批量写回Redis（数据库中不存在的写入空值）。返回结果与ids的顺序一致，不存在的id被跳过。
+     * @param dbBatchFallback 按id列表批量查询数据库，例如 this::listByIds
+     * @param idGetter 从查询结果中取出id，用来与ids对应
+     */
+    public <R,ID> List<R> queryBatch(
+            String keyPrefix, List<ID> ids, Class<R> type, Function<List<ID>, List<R>> dbBatchFallback,
+            Function<R, ID> idGetter, Long time, TimeUnit unit){
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        LocalCache<Object> nearCache = nearCaches.get(keyPrefix);
+        Map<ID, R> found = new HashMap<>(ids.size() * 2);
+//        1.一级缓存和布隆过滤器，剩下的id需要查询Redis
+        List<ID> redisIds = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            if (found.containsKey(id) || !mightContain(keyPrefix, id)) {
+                continue;
+            }
+            R cached = nearCache == null ? null : unwrapNear(nearCache.get(keyPrefix + id), type);
+            if (cached != null) {
+                found.put(id, cached);
+            } else if (!redisIds.contains(id)) {
+                redisIds.add(id);
+            }
+        }
+//        2.一次MGET查询Redis
+        List<ID> missIds = new ArrayList<>();
+        if (!redisIds.isEmpty()) {
+            byte[][] keys = new byte[redisIds.size()][];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = rawKey(keyPrefix + redisIds.get(i));
+            }
+            List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.stringCommands().mGet(keys));
+            for (int i = 0; i < redisIds.size(); i++) {
+                byte[] bytes = values == null ? null : values.get(i);
+                ID id = redisIds.get(i);
+                if (bytes == null) {
+                    missIds.add(id);
+                } else if (bytes.length > 0) {
+//                    逻辑过期的数据在列表中直接使用，由单条查询负责重建
+                    R r = cacheCodec.decode(bytes, type);
+                    found.put(id, r);
+                    putNearCache(nearCache, keyPrefix + id, r);
+                }
+//                空值说明数据库中不存在
+            }
+        }
+//        3.未命中的id一次查询数据库，并用管道写回Redis
+        if (!missIds.isEmpty()) {
+            List<R> loaded = dbBatchFallback.apply(missIds);
+            Map<ID, R> loadedMap = new HashMap<>(loaded.size() * 2);
+            for (R r : loaded) {
+                loadedMap.put(idGetter.apply(r), r);
+            }
+//            逻辑过期的前缀写入真实的逻辑过期时间，Redis的TTL保留，批量写入的数据仍会自然过期
+            boolean logicalExpire = logicalExpirePrefixes.contains(keyPrefix);
+            long expireAt = logicalExpire ? System.currentTimeMillis() + unit.toMillis(time) : 0;
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : missIds) {
+                    R r = loadedMap.get(id);
+                    if (r == null) {
+                        connection.stringCommands().set(rawKey(keyPrefix + id), new byte[0],
+                                Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES), RedisStringCommands.SetOption.upsert());
+                    } else {
+                        connection.stringCommands().set(rawKey(keyPrefix + id), cacheCodec.encode(r, expireAt),
+                                Expiration.from(time, unit), RedisStringCommands.SetOption.upsert());
+                    }
+                }
+                return null;
+            });
+            loadedMap.forEach((id, r) -> putNearCache(nearCache, keyPrefix + id, logicalExpire ? logicalData(r, expireAt) : r));
+            found.putAll(loadedMap);
+        }
+//        4.按ids的顺序返回
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 一级缓存的命中、未命中、淘汰次数，按key前缀分组
+     */
+    public Map<String, Map<String, Long>> getNearCacheStats(){
+        Map<String, Map<String, Long>> stats = new LinkedHashMap<>();
+        nearCaches.forEach((keyPrefix, nearCache) -> {
+            Map<String, Long> stat = new LinkedHashMap<>();
+            stat.put("size", nearCache.size());
+            stat.put("hit", nearCache.hitCount());
+            stat.put("miss", nearCache.missCount());
+            stat.put("eviction", nearCache.evictionCount());
+            stats.put(keyPrefix, stat);
+        });
+        return stats;
+    }
+
+    /**
+     * 缓存重建调度器的排队、去重、拒绝、主动刷新次数
+     */
+    public Map<String, Long> getRebuildStats(){
+        return cacheRebuildScheduler.getStats();
+    }
+
+    /**
+     * 布隆过滤器的容量与内存占用，按key前缀分组
+     */
+    public Map<String, Map<String, Long>> getBloomFilterStats(){
+        Map<String, Map<String, Long>> stats = new LinkedHashMap<>();
+        bloomFilters.forEach((keyPrefix, bloomFilter) -> {
+            Map<String, Long> stat = new LinkedHashMap<>();
+            stat.put("bitSize", bloomFilter.bitSize());
+            stat.put("hashCount", (long) bloomFilter.hashCount());
+            stat.put("capacity", bloomFilter.capacity());
+            stat.put("memoryBytes", bloomFilter.memoryBytes());
+            stats.put(keyPrefix, stat);
+        });
+        return stats;
+    }
+
+    private void putNearCache(LocalCache<Object> nearCache, String key, Object value){
+        if (nearCache != null && value != null) {
+            nearCache.put(key, value);
+        }
+    }
+
+//    一级缓存中可能是对象本身，也可能是逻辑过期的包装
+    private static <R> R unwrapNear(Object cached, Class<R> type){
+        if (cached instanceof LogicalValue) {
+            cached = ((LogicalValue) cached).data;
+        }
+        return type.isInstance(cached) ? type.cast(cached) : null;
+    }
+
+    private static LogicalValue logicalData(Object value, long expireAt){
+        return new LogicalValue(value, expireAt);
+    }
+
+//    一级缓存中逻辑过期数据的包装，保存解码后的对象和过期时间（毫秒时间戳）
+    private static final class LogicalValue {
+        final Object data;
+        final long expireAt;
+
+        LogicalValue(Object data, long expireAt) {
+            this.data = data;
+            this.expireAt = expireAt;
+        }
+    }
+
+//    按原始字节读取，由编解码器负责解析；空值标记为空字节数组
+    private byte[] getRaw(String key){
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.stringCommands().get(rawKey(key)));
+    }
+
+    private static byte[] rawKey(String key){
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void onInvalidate(Message message, byte[] pattern){
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        nearCaches.forEach((keyPrefix, nearCache) -> {
+            if (key.startsWith(keyPrefix)) {
+                nearCache.invalidate(key);
+            }
+        });
+    }
 
     //    创建锁
     private boolean tryLock(String key){
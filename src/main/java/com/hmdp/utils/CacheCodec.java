@@ -0,0 +1,42 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编解码方式，CacheClient通过它读写Redis中的原始字节
+ * <p>
+ * 逻辑过期时间由编解码器自己保存，可以只读出过期时间而不解码整个对象。
+ */
+public interface CacheCodec {
+
+    /**
+     * @param value 要缓存的对象
+     * @param expireAt 逻辑过期时间（毫秒时间戳），0表示没有逻辑过期
+     */
+    byte[] encode(Object value, long expireAt);
+
+    /**
+     * 读取逻辑过期时间，没有逻辑过期时返回0
+     */
+    long expireAt(byte[] bytes);
+
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    /**
+     * 同时解码对象和逻辑过期时间，需要先解析整个值才能拿到过期时间的编码方式应该重写为只解析一次
+     */
+    default <T> Decoded<T> decodeWithExpire(byte[] bytes, Class<T> type) {
+        return new Decoded<>(decode(bytes, type), expireAt(bytes));
+    }
+
+    /**
+     * 解码后的对象及其逻辑过期时间
+     */
+    final class Decoded<T> {
+        public final T value;
+        public final long expireAt;
+
+        public Decoded(T value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+}
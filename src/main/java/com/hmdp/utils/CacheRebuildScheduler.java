@@ -0,0 +1,223 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 所有缓存重建共用的调度器
+ * <p>
+ * 重建任务按key去重，排队数量有上限，超出直接拒绝（读请求继续返回旧数据），
+ * 部署后大量key同时过期也不会堆积线程和内存。队列按key的访问次数排序，热点key先重建。
+ * 另外记录近期访问的热点key，在逻辑过期前主动刷新，读请求基本不会读到过期数据。
+ */
+@Slf4j
+@Component
+public class CacheRebuildScheduler {
+    @Value("${hmdp.cache.rebuild.threads:4}")
+    private int threads;
+    @Value("${hmdp.cache.rebuild.queue-capacity:1000}")
+    private int queueCapacity;
+//    距离逻辑过期还剩多久时主动刷新
+    @Value("${hmdp.cache.rebuild.refresh-ahead-millis:5000}")
+    private long refreshAheadMillis;
+//    一个扫描周期内至少访问多少次才算热点key
+    @Value("${hmdp.cache.rebuild.hot-threshold:10}")
+    private long hotThreshold;
+    @Value("${hmdp.cache.rebuild.max-tracked-keys:10000}")
+    private int maxTrackedKeys;
+    @Value("${hmdp.cache.rebuild.scan-interval-millis:1000}")
+    private long scanIntervalMillis;
+
+    private ThreadPoolExecutor executor;
+    private ScheduledExecutorService refreshScanner;
+
+//    排队中或执行中的key，用于去重
+    private final Map<String, RebuildTask> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Map<String, HotKey> hotKeys = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder refreshedAhead = new LongAdder();
+
+    @PostConstruct
+    private void init(){
+//        PriorityBlockingQueue本身无界，容量由queued计数控制
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "cache-rebuild-" + sequence.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        refreshScanner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cache-refresh-scanner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refreshScanner.scheduleWithFixedDelay(this::refreshHotKeys, scanIntervalMillis, scanIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 等待已排队的重建任务执行完，最多等待10秒
+     */
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        refreshScanner.shutdownNow();
+        executor.shutdown();
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.warn("缓存重建任务未在10秒内完成，剩余{}个任务被丢弃", executor.shutdownNow().size());
+        }
+    }
+
+    /**
+     * 提交重建任务
+     * @return false表示同一个key已在排队、队列已满或已关闭，任务没有被执行，调用方需要自行释放已获取的资源
+     */
+    public boolean submit(String key, Runnable task){
+        HotKey hotKey = hotKeys.get(key);
+        long priority = hotKey == null ? 0 : hotKey.total.sum();
+        RebuildTask rebuildTask = new RebuildTask(key, task, priority, sequence.incrementAndGet());
+        if (pending.putIfAbsent(key, rebuildTask) != null) {
+            deduplicated.increment();
+            return false;
+        }
+        if (queued.incrementAndGet() > queueCapacity) {
+            queued.decrementAndGet();
+            pending.remove(key, rebuildTask);
+            rejected.increment();
+            return false;
+        }
+        try {
+            executor.execute(rebuildTask);
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            pending.remove(key, rebuildTask);
+            rejected.increment();
+            return false;
+        }
+        submitted.increment();
+        return true;
+    }
+
+    /**
+     * 记录一次对逻辑过期key的访问，热点key会在过期前由refresher主动刷新
+     * @param expireAt 当前缓存的逻辑过期时间（毫秒时间戳）
+     * @param refresher 刷新逻辑，只在第一次记录该key时保存
+     */
+    public void recordAccess(String key, long expireAt, Runnable refresher){
+        HotKey hotKey = hotKeys.get(key);
+        if (hotKey == null) {
+            if (hotKeys.size() >= maxTrackedKeys) {
+                return;
+            }
+            hotKey = hotKeys.computeIfAbsent(key, k -> new HotKey(refresher));
+        }
+        hotKey.window.increment();
+        hotKey.total.increment();
+        hotKey.expireAt = expireAt;
+    }
+
+    public Map<String, Long> getStats(){
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("queued", (long) queued.get());
+        stats.put("active", (long) executor.getActiveCount());
+        stats.put("submitted", submitted.sum());
+        stats.put("deduplicated", deduplicated.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("completed", completed.sum());
+        stats.put("failed", failed.sum());
+        stats.put("refreshedAhead", refreshedAhead.sum());
+        stats.put("trackedKeys", (long) hotKeys.size());
+        return stats;
+    }
+
+//    扫描热点key：访问次数达到阈值且即将逻辑过期的提交刷新；一个周期内没有访问的key不再跟踪
+    private void refreshHotKeys(){
+        try {
+            long now = System.currentTimeMillis();
+            hotKeys.forEach((key, hotKey) -> {
+                long hits = hotKey.window.sumThenReset();
+                if (hits == 0) {
+                    hotKeys.remove(key, hotKey);
+                    return;
+                }
+                long expireAt = hotKey.expireAt;
+                if (hits >= hotThreshold && expireAt - now <= refreshAheadMillis && submit(key, hotKey.refresher)) {
+//                    刷新后下一次访问会带回新的过期时间，在此之前不重复提交
+                    hotKey.expireAt = Long.MAX_VALUE;
+                    refreshedAhead.increment();
+                }
+            });
+        } catch (Exception e) {
+            log.error("扫描热点key失败", e);
+        }
+    }
+
+    private static final class HotKey {
+        final Runnable refresher;
+//        当前扫描周期内的访问次数
+        final LongAdder window = new LongAdder();
+//        累计访问次数，作为重建任务的优先级
+        final LongAdder total = new LongAdder();
+        volatile long expireAt;
+
+        HotKey(Runnable refresher) {
+            this.refresher = refresher;
+        }
+    }
+
+    private final class RebuildTask implements Runnable, Comparable<RebuildTask> {
+        final String key;
+        final Runnable task;
+        final long priority;
+        final long seq;
+
+        RebuildTask(String key, Runnable task, long priority, long seq) {
+            this.key = key;
+            this.task = task;
+            this.priority = priority;
+            this.seq = seq;
+        }
+
+        @Override
+        public void run() {
+            queued.decrementAndGet();
+            try {
+                task.run();
+                completed.increment();
+            } catch (Exception e) {
+                failed.increment();
+                log.error("缓存重建失败,key:{}", key, e);
+            } finally {
+                pending.remove(key, this);
+            }
+        }
+
+//        访问次数多的先执行，相同时先提交的先执行
+        @Override
+        public int compareTo(RebuildTask other) {
+            int byPriority = Long.compare(other.priority, priority);
+            return byPriority != 0 ? byPriority : Long.compare(seq, other.seq);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 计数增量的延迟写入，博客点赞数、用户粉丝数和关注数共用
+ * <p>
+ * 计数变化时只在Redis的增量hash中HINCRBY，不再逐次UPDATE数据库。后台定时把增量RENAME为flushing，
+ * 分批交给 {@link Handler#apply} 写入数据库，每写完一批就从flushing中删除这一批；进程在写入中途退出时flushing会保留下来，
+ * 下一次先处理它，增量不会丢失。这样是至少一次写入，重复写入由定时对账修正，等待对账的成员保存在Redis的SET中。
+ * 多个节点通过分布式锁保证同一时间只有一个节点在写入，每写一批之前续期锁，锁已经失效时立即停止，
+ * 不会与获得锁的其他节点重复写入同一批增量。
+ */
+@Slf4j
+public class DeltaFlusher {
+    private final String lockName;
+    private final String deltaKey;
+    private final String flushingKey;
+    private final String reconcileKey;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisScriptRegistry redisScriptRegistry;
+    private final Handler handler;
+
+    private long flushIntervalMillis;
+    private int batchSize;
+    private long reconcileIntervalMillis;
+    private long lastReconcileMillis = System.currentTimeMillis();
+    private ScheduledExecutorService flushExecutor;
+
+    /**
+     * @param lockName 写入时持有的分布式锁
+     * @param deltaKey 增量hash，字段由调用方决定
+     * @param flushingKey 正在写入的增量hash，与deltaKey使用相同的hash tag
+     * @param reconcileKey 等待对账的成员SET
+     */
+    public DeltaFlusher(String lockName, String deltaKey, String flushingKey, String reconcileKey,
+                        StringRedisTemplate stringRedisTemplate, RedisScriptRegistry redisScriptRegistry, Handler handler) {
+        this.lockName = lockName;
+        this.deltaKey = deltaKey;
+        this.flushingKey = flushingKey;
+        this.reconcileKey = reconcileKey;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisScriptRegistry = redisScriptRegistry;
+        this.handler = handler;
+    }
+
+    /**
+     * 开始定时写入
+     * @param reconcileIntervalSeconds 对账间隔，0表示不对账
+     */
+    public void start(String threadName, long flushIntervalMillis, int batchSize, long reconcileIntervalSeconds) {
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.batchSize = batchSize;
+        this.reconcileIntervalMillis = TimeUnit.SECONDS.toMillis(reconcileIntervalSeconds);
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        flushExecutor.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止定时写入，并把已经累积的增量写回去
+     */
+    public void stop() {
+        if (flushExecutor != null) {
+            flushExecutor.shutdownNow();
+        }
+        flushQuietly();
+    }
+
+    /**
+     * 一次管道累加多个字段的增量
+     */
+    public void increment(Map<String, Long> deltas) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            deltas.forEach((field, delta) -> stringConnection.hIncrBy(deltaKey, field, delta));
+            return null;
+        });
+    }
+
+    public void increment(String field, long delta) {
+        stringRedisTemplate.opsForHash().increment(deltaKey, field, delta);
+    }
+
+    private void flushQuietly() {
+        ILock lock = new SimpleRedisLock(lockName, stringRedisTemplate, redisScriptRegistry);
+        long lockSeconds = Math.max(30L, TimeUnit.MILLISECONDS.toSeconds(flushIntervalMillis) * 6);
+        if (!lock.tryLock(lockSeconds)) {
+            return;
+        }
+        try {
+            flush(lock, lockSeconds);
+            if (reconcileIntervalMillis > 0 && System.currentTimeMillis() - lastReconcileMillis >= reconcileIntervalMillis) {
+                lastReconcileMillis = System.currentTimeMillis();
+                reconcile(lock, lockSeconds);
+            }
+        } catch (Exception e) {
+            log.error("写入计数增量失败,key:{}", deltaKey, e);
+        } finally {
+            lock.unLock();
+        }
+    }
+
+    private void flush(ILock lock, long lockSeconds) {
+//        上一次写入中途失败留下的增量先处理，处理完之前不取新的增量
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(flushingKey))) {
+            if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(deltaKey))
+                    || !Boolean.TRUE.equals(stringRedisTemplate.renameIfAbsent(deltaKey, flushingKey))) {
+                return;
+            }
+        }
+        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(flushingKey);
+        Map<String, Long> deltas = new LinkedHashMap<>();
+        entries.forEach((field, delta) -> {
+            long value = Long.parseLong(delta.toString());
+            if (value != 0) {
+                deltas.put(field.toString(), value);
+            }
+        });
+        for (Map<String, Long> batch : partition(deltas)) {
+            renewOrFail(lock, lockSeconds);
+            Collection<String> members = handler.apply(batch);
+//            写入的这一批先登记对账，再从flushing中删除，中途失败时只会重复写入当前这一批
+            if (!members.isEmpty()) {
+                stringRedisTemplate.opsForSet().add(reconcileKey, members.toArray(new String[0]));
+            }
+            stringRedisTemplate.opsForHash().delete(flushingKey, batch.keySet().toArray());
+        }
+        stringRedisTemplate.delete(flushingKey);
+        log.debug("写入{}个计数增量,key:{}", deltas.size(), deltaKey);
+    }
+
+    private void reconcile(ILock lock, long lockSeconds) {
+        while (true) {
+            renewOrFail(lock, lockSeconds);
+            List<String> members = stringRedisTemplate.opsForSet().pop(reconcileKey, batchSize);
+            if (members == null || members.isEmpty()) {
+                return;
+            }
+            try {
+                handler.reconcile(members);
+            } catch (RuntimeException e) {
+//                对账失败的成员放回去，下次再对账
+                stringRedisTemplate.opsForSet().add(reconcileKey, members.toArray(new String[0]));
+                throw e;
+            }
+        }
+    }
+
+//    每写一批之前续期锁，锁已经被其他节点获取时停止，剩下的增量留在flushing中由持有锁的节点写入
+    private static void renewOrFail(ILock lock, long lockSeconds) {
+        if (!lock.renew(lockSeconds)) {
+            throw new IllegalStateException("写入计数增量的锁已失效，停止本次写入");
+        }
+    }
+
+    private List<Map<String, Long>> partition(Map<String, Long> values) {
+        List<Map<String, Long>> batches = new ArrayList<>();
+        Map<String, Long> batch = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : values.entrySet()) {
+            batch.put(entry.getKey(), entry.getValue());
+            if (batch.size() >= batchSize) {
+                batches.add(batch);
+                batch = new LinkedHashMap<>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    /**
+     * 增量的写入和对账方式
+     */
+    public interface Handler {
+        /**
+         * 把一批增量写入数据库
+         * @param deltas hash字段 -> 增量，最多batch-size个
+         * @return 写入后需要对账的成员
+         */
+        Collection<String> apply(Map<String, Long> deltas);
+
+        /**
+         * 按权威数据重新计算计数并覆盖数据库中的值
+         * @param members apply返回过的成员，最多batch-size个
+         */
+        void reconcile(List<String> members);
+    }
+}
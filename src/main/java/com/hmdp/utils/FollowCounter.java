@@ -0,0 +1,144 @@
+package com.hmdp.utils;
+
+import com.hmdp.mapper.UserInfoMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.hmdp.utils.RedisConstants.FOLLOW_COUNT_DELTA_KEY;
+import static com.hmdp.utils.RedisConstants.FOLLOW_COUNT_FLUSHING_KEY;
+import static com.hmdp.utils.RedisConstants.FOLLOW_COUNT_RECONCILE_KEY;
+
+/**
+ * 用户粉丝数、关注数的延迟写入
+ * <p>
+ * 关注、取关时只在Redis的 follow:count:{delta} 中HINCRBY增量，字段为 fans:{userId} 和 followee:{userId}，
+ * 由 {@link DeltaFlusher} 定时用 UPDATE ... CASE 分批写入 tb_user_info。
+ * 同一个用户被大量关注时，一个写入周期内的所有关注只产生一次UPDATE。
+ * 重复写入由定时对账修正：粉丝数、关注数按 tb_follow 中的记录数重新计算，再减去尚未写入的增量。
+ */
+@Slf4j
+@Component
+public class FollowCounter {
+    private static final String FLUSH_LOCK_NAME = "follow:count:flush";
+    private static final String FANS_FIELD = "fans:";
+    private static final String FOLLOWEE_FIELD = "followee:";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private UserInfoMapper userInfoMapper;
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    @Value("${hmdp.follow.count.flush-interval-millis:5000}")
+    private long flushIntervalMillis;
+    @Value("${hmdp.follow.count.batch-size:500}")
+    private int batchSize;
+//    对账间隔，0表示不对账
+    @Value("${hmdp.follow.count.reconcile-interval-seconds:600}")
+    private long reconcileIntervalSeconds;
+
+    private DeltaFlusher flusher;
+
+    @PostConstruct
+    private void init(){
+        flusher = new DeltaFlusher(FLUSH_LOCK_NAME, FOLLOW_COUNT_DELTA_KEY, FOLLOW_COUNT_FLUSHING_KEY, FOLLOW_COUNT_RECONCILE_KEY,
+                stringRedisTemplate, redisScriptRegistry, new DeltaFlusher.Handler() {
+            @Override
+            public Collection<String> apply(Map<String, Long> deltas) {
+                return applyDeltas(deltas);
+            }
+
+            @Override
+            public void reconcile(List<String> members) {
+                reconcileUsers(members);
+            }
+        });
+        flusher.start("follow-count-flusher", flushIntervalMillis, batchSize, reconcileIntervalSeconds);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        flusher.stop();
+    }
+
+    /**
+     * 记录一次关注或取关，关注者的关注数和被关注者的粉丝数一次管道更新
+     * @param delta 1为关注，-1为取关
+     */
+    public void increment(Long userId, Long followUserId, long delta){
+        Map<String, Long> deltas = new LinkedHashMap<>();
+        deltas.put(FOLLOWEE_FIELD + userId, delta);
+        deltas.put(FANS_FIELD + followUserId, delta);
+        flusher.increment(deltas);
+    }
+
+    private Collection<String> applyDeltas(Map<String, Long> deltas){
+        Map<Long, Long> fans = new LinkedHashMap<>();
+        Map<Long, Long> followee = new LinkedHashMap<>();
+        deltas.forEach((field, delta) -> {
+            if (field.startsWith(FANS_FIELD)) {
+                fans.put(Long.valueOf(field.substring(FANS_FIELD.length())), delta);
+            } else if (field.startsWith(FOLLOWEE_FIELD)) {
+                followee.put(Long.valueOf(field.substring(FOLLOWEE_FIELD.length())), delta);
+            }
+        });
+        Set<Long> userIds = new LinkedHashSet<>(fans.keySet());
+        userIds.addAll(followee.keySet());
+        if (userIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+//        没有详情的用户先插入默认行，否则UPDATE不会生效
+        userInfoMapper.insertIgnoreBatch(userIds);
+        if (!fans.isEmpty()) {
+            userInfoMapper.addFansBatch(fans);
+        }
+        if (!followee.isEmpty()) {
+            userInfoMapper.addFolloweeBatch(followee);
+        }
+        List<String> members = new ArrayList<>(userIds.size());
+        userIds.forEach(id -> members.add(id.toString()));
+        return members;
+    }
+
+//    粉丝数、关注数 = tb_follow中的记录数 - 还在Redis中未写入的增量
+    private void reconcileUsers(List<String> members){
+        List<Object> pending = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (String id : members) {
+                stringConnection.hGet(FOLLOW_COUNT_DELTA_KEY, FANS_FIELD + id);
+                stringConnection.hGet(FOLLOW_COUNT_DELTA_KEY, FOLLOWEE_FIELD + id);
+            }
+            return null;
+        });
+        Map<Long, Long> fans = new LinkedHashMap<>();
+        Map<Long, Long> followee = new LinkedHashMap<>();
+        for (int i = 0; i < members.size(); i++) {
+            Long userId = Long.valueOf(members.get(i));
+            fans.put(userId, toLong(pending.get(2 * i)));
+            followee.put(userId, toLong(pending.get(2 * i + 1)));
+        }
+        userInfoMapper.reconcileFansBatch(fans);
+        userInfoMapper.reconcileFolloweeBatch(followee);
+        log.debug("对账{}个用户的粉丝数、关注数", members.size());
+    }
+
+    private static long toLong(Object value){
+        return value == null ? 0 : Long.parseLong(value.toString());
+    }
+}
@@ -8,6 +8,13 @@ public interface ILock {
      */
     boolean tryLock(Long timeoutSec);
 
+    /**
+     * 续期，长时间的任务在执行过程中调用，避免锁过期后被其他节点获取
+     * @param timeoutSec 从现在起重新计算的超时时间
+     * @return false表示锁已经不再由当前线程持有，应停止执行
+     */
+    boolean renew(Long timeoutSec);
+
     /**
      * 释放锁
      */
@@ -0,0 +1,13 @@
+package com.hmdp.utils;
+
+/**
+ * 全局唯一ID生成器，通过配置 hmdp.id.mode 在不同实现之间切换
+ */
+public interface IdGenerator {
+    /**
+     * 生成下一个id
+     * @param keyPrefix 业务前缀，例如 order；不需要按业务区分序列的实现可以忽略
+     * @return 全局唯一、趋势递增的id
+     */
+    long nextId(String keyPrefix);
+}
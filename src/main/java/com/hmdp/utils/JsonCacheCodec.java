@@ -0,0 +1,66 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * JSON编解码，与原来直接使用JSONUtil写入的格式一致：普通缓存是对象本身的json，逻辑过期缓存是RedisData的json
+ */
+public class JsonCacheCodec implements CacheCodec {
+    private static final String EXPIRE_TIME = "expireTime";
+    private static final String DATA = "data";
+
+    @Override
+    public byte[] encode(Object value, long expireAt) {
+        if (expireAt <= 0) {
+            return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+        }
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireAt), ZoneId.systemDefault()));
+        return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public long expireAt(byte[] bytes) {
+        return expireAt(parse(bytes));
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return decode(parse(bytes), type);
+    }
+
+    @Override
+    public <T> Decoded<T> decodeWithExpire(byte[] bytes, Class<T> type) {
+//        对象和过期时间从同一次解析的结果中读取
+        JSONObject json = parse(bytes);
+        return new Decoded<>(decode(json, type), expireAt(json));
+    }
+
+//    逻辑过期格式直接从data字段转换为目标类型
+    private static <T> T decode(JSONObject json, Class<T> type) {
+        if (json.containsKey(EXPIRE_TIME) && json.containsKey(DATA)) {
+            return json.getJSONObject(DATA).toBean(type);
+        }
+        return json.toBean(type);
+    }
+
+//    只转换expireTime字段，不把整个RedisData再转换一遍
+    private static long expireAt(JSONObject json) {
+        LocalDateTime expireTime = json.get(EXPIRE_TIME, LocalDateTime.class);
+        if (expireTime == null) {
+            return 0;
+        }
+        return expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static JSONObject parse(byte[] bytes) {
+        return JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,133 @@
+package com.hmdp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 进程内缓存，按容量(LRU)和写入后的存活时间淘汰
+ * <p>
+ * 内部分成多个段，每段是一个按访问顺序排列的LinkedHashMap，读写只锁所在的段，
+ * 热点数据分散在不同段上，不会争抢同一把锁。
+ */
+public class LocalCache<V> {
+    private static final int SEGMENT_COUNT = 16;
+
+    private final Segment<V>[] segments;
+    private final long ttlNanos;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    @SuppressWarnings("unchecked")
+    public LocalCache(int maxSize, long ttl, TimeUnit unit) {
+        this.ttlNanos = unit.toNanos(ttl);
+        int segmentSize = Math.max(1, (maxSize + SEGMENT_COUNT - 1) / SEGMENT_COUNT);
+        this.segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment<>(segmentSize, evictionCount);
+        }
+    }
+
+    public V get(String key) {
+        Segment<V> segment = segmentFor(key);
+        synchronized (segment) {
+            Entry<V> entry = segment.get(key);
+            if (entry == null) {
+                missCount.increment();
+                return null;
+            }
+            if (entry.expireAt - System.nanoTime() <= 0) {
+//                已过期，按淘汰处理
+                segment.remove(key);
+                evictionCount.increment();
+                missCount.increment();
+                return null;
+            }
+            hitCount.increment();
+            return entry.value;
+        }
+    }
+
+    public void put(String key, V value) {
+        Segment<V> segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, new Entry<>(value, System.nanoTime() + ttlNanos));
+        }
+    }
+
+    public void invalidate(String key) {
+        Segment<V> segment = segmentFor(key);
+        synchronized (segment) {
+            segment.remove(key);
+        }
+    }
+
+    public void invalidateAll() {
+        for (Segment<V> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment<V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long hitCount() {
+        return hitCount.sum();
+    }
+
+    public long missCount() {
+        return missCount.sum();
+    }
+
+    public long evictionCount() {
+        return evictionCount.sum();
+    }
+
+    private Segment<V> segmentFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (SEGMENT_COUNT - 1)];
+    }
+
+    private static final class Entry<V> {
+        final V value;
+        final long expireAt;
+
+        Entry(V value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    private static final class Segment<V> extends LinkedHashMap<String, Entry<V>> {
+        private final int maxSize;
+        private final LongAdder evictionCount;
+
+        Segment(int maxSize, LongAdder evictionCount) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+            this.evictionCount = evictionCount;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+            if (size() > maxSize) {
+                evictionCount.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_INVALIDATE_CHANNEL;
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_TTL;
+
+/**
+ * 登录会话的本地缓存
+ * <p>
+ * 按token缓存UserDTO，命中时不访问Redis；token的有效期刷新改为后台批量执行，
+ * 同一个token在一个刷新窗口内最多EXPIRE一次。退出登录时通过发布订阅通知所有节点清除本地缓存。
+ */
+@Slf4j
+@Component
+public class LoginSessionCache {
+    private final StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.login.session-cache.max-size:10000}")
+    private int maxSize;
+//    本地缓存的存活时间，其他节点修改用户信息后最迟在这个时间后可见
+    @Value("${hmdp.login.session-cache.ttl-seconds:60}")
+    private long ttlSeconds;
+//    同一个token两次EXPIRE之间的最小间隔
+    @Value("${hmdp.login.session-cache.refresh-window-seconds:60}")
+    private long refreshWindowSeconds;
+    @Value("${hmdp.login.session-cache.flush-interval-millis:1000}")
+    private long flushIntervalMillis;
+
+    private LocalCache<Session> sessions;
+//    等待刷新有效期的token
+    private final Set<String> dirtyTokens = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "login-ttl-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public LoginSessionCache(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void init(){
+        sessions = new LocalCache<>(maxSize, ttlSeconds, TimeUnit.SECONDS);
+        redisMessageListenerContainer.addMessageListener(this::onInvalidate, new ChannelTopic(LOGIN_INVALIDATE_CHANNEL));
+        flushExecutor.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        flushExecutor.shutdownNow();
+//        把还没刷新的有效期写回去
+        flush();
+    }
+
+    /**
+     * 根据token查询登录用户，本地没有时从Redis的 login:token:{token} 中加载；命中时按刷新窗口续期
+     * @return token无效时返回null
+     */
+    public UserDTO get(String token){
+        Session session = sessions.get(token);
+        if (session != null) {
+            touch(token, session);
+            return session.user;
+        }
+        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(LOGIN_USER_KEY + token);
+        if (userMap.isEmpty()) {
+            return null;
+        }
+//        字段固定，直接取值，不做反射拷贝
+        UserDTO userDTO = new UserDTO();
+        Object id = userMap.get("id");
+        userDTO.setId(id == null ? null : Long.valueOf(id.toString()));
+        userDTO.setNickName((String) userMap.get("nickName"));
+        userDTO.setIcon((String) userMap.get("icon"));
+//        刚从Redis加载的会话按已刷新处理，下一个窗口再续期
+        sessions.put(token, new Session(userDTO, System.currentTimeMillis()));
+        stringRedisTemplate.expire(LOGIN_USER_KEY + token, LOGIN_USER_TTL, TimeUnit.MINUTES);
+        return userDTO;
+    }
+
+//    需要续期时交给后台批量EXPIRE
+    private void touch(String token, Session session){
+        long now = System.currentTimeMillis();
+        long last = session.lastRefreshMillis;
+        if (now - last >= TimeUnit.SECONDS.toMillis(refreshWindowSeconds)) {
+            session.lastRefreshMillis = now;
+            dirtyTokens.add(token);
+        }
+    }
+
+    /**
+     * 退出登录：删除Redis中的会话，并通知所有节点清除本地缓存
+     */
+    public void invalidate(String token){
+        if (StrUtil.isBlank(token)) {
+            return;
+        }
+        sessions.invalidate(token);
+        dirtyTokens.remove(token);
+        stringRedisTemplate.delete(LOGIN_USER_KEY + token);
+        stringRedisTemplate.convertAndSend(LOGIN_INVALIDATE_CHANNEL, token);
+    }
+
+//    管道批量续期
+    private void flush(){
+        if (dirtyTokens.isEmpty()) {
+            return;
+        }
+        List<String> tokens = new ArrayList<>(dirtyTokens.size());
+        for (Iterator<String> iterator = dirtyTokens.iterator(); iterator.hasNext(); ) {
+            tokens.add(iterator.next());
+            iterator.remove();
+        }
+        try {
+            long seconds = TimeUnit.MINUTES.toSeconds(LOGIN_USER_TTL);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                for (String token : tokens) {
+                    stringConnection.expire(LOGIN_USER_KEY + token, seconds);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("批量刷新token有效期失败,数量:{}", tokens.size(), e);
+        }
+    }
+
+    private void onInvalidate(Message message, byte[] pattern){
+        sessions.invalidate(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    private static final class Session {
+        final UserDTO user;
+        volatile long lastRefreshMillis;
+
+        Session(UserDTO user, long lastRefreshMillis) {
+            this.user = user;
+            this.lastRefreshMillis = lastRefreshMillis;
+        }
+    }
+}
@@ -5,14 +5,48 @@ public class RedisConstants {
     public static final Long LOGIN_CODE_TTL = 2L;
     public static final String LOGIN_USER_KEY = "login:token:";
     public static final Long LOGIN_USER_TTL = 36000L;
+    public static final String LOGIN_INVALIDATE_CHANNEL = "login:invalidate";
+    public static final String LOGIN_REVOKED_KEY = "login:revoked";
+    public static final String LOGIN_REVOKE_CHANNEL = "login:revoke";
     public static final Long CACHE_NULL_TTL = 2L;
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String BLOOM_SHOP_KEY = "bloom:shop";
+    public static final String BLOOM_BLOG_KEY = "bloom:blog";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String LOCK_KEY_PREFIX = "lock:";
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final String ID_WORKER_TIMESTAMP_KEY = "id:worker:ts:";
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_BUCKETS_KEY = "seckill:buckets:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_ORDER_STREAM = "streams.order";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_DLQ = "streams.order.dlq";
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final Long ORDER_STATUS_TTL = 86400L;
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    public static final String BLOG_LIKE_DELTA_KEY = "blog:like:{delta}";
+    public static final String BLOG_LIKE_FLUSHING_KEY = "blog:like:{delta}:flushing";
+    public static final String BLOG_LIKE_RECONCILE_KEY = "blog:like:reconcile";
+    public static final String BLOG_HOT_KEY = "blog:{hot}";
+    public static final String BLOG_HOT_EPOCH_KEY = "blog:{hot}:epoch";
+    public static final String BLOG_HOT_BUILDING_KEY = "blog:{hot}:building";
     public static final String FEED_KEY = "feed:";
+    public static final String FEED_OUTBOX_KEY = "feed:outbox:";
+    public static final String FEED_BIG_AUTHORS_KEY = "feed:big";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final String SHOP_GEO_LOADED_KEY = "shop:geo:loaded";
+    public static final String SHOP_GRID_CHANNEL = "shop:grid";
+    public static final String FOLLOWS_KEY = "follows:";
+    public static final String FOLLOWS_LOADED_KEY = "follows:loaded";
+    public static final String FOLLOW_COUNT_DELTA_KEY = "follow:count:{delta}";
+    public static final String FOLLOW_COUNT_FLUSHING_KEY = "follow:count:{delta}:flushing";
+    public static final String FOLLOW_COUNT_RECONCILE_KEY = "follow:count:reconcile";
     public static final String USER_SIGN_KEY = "sign:";
 }
@@ -1,38 +1,195 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
+import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * 基于Redis号段的全局ID生成器
+ * <p>
+ * id = 31位秒级时间戳 << 32 | 32位当天序列号，序列号来自Redis的 icr:{keyPrefix}:{yyyy:MM:dd}。
+ * 每次INCRBY租用一段序列号放在本地分配，号段用掉一部分后由后台线程预加载下一段（双缓冲），
+ * 所以nextId()只有CAS，没有Redis往返也没有对象分配。号段大小按消耗速度在 MIN_STEP ~ MAX_STEP 之间自适应。
+ * 重启后从Redis中的计数继续租用，未用完的号段直接丢弃，因此id仍然唯一且递增。
+ */
+@Slf4j
 @Component
-public class RedisIdWorker {
+@ConditionalOnProperty(name = "hmdp.id.mode", havingValue = "redis", matchIfMissing = true)
+public class RedisIdWorker implements IdGenerator {
 //    开始时间戳
     private static final long BEGIN_TIMESTAMP = 1640995200L;
 //    序列号的位数
     private static final int COUNT_BITS = 32;
+    private static final long SECONDS_PER_DAY = 86400L;
+//    号段大小上下限
+    private static final long MIN_STEP = 1000L;
+    private static final long MAX_STEP = 100000L;
+//    期望一个号段的使用时长，用得比这快就加倍号段，慢得多就减半
+    private static final long SEGMENT_DURATION_MILLIS = 60_000L;
+//    当前号段用掉多少比例后开始预加载下一个号段
+    private static final double PREFETCH_RATIO = 0.2;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+//    原实现使用LocalDateTime.now()再按UTC换算秒数，这里保持同样的本地时间语义
+    private static final TimeZone ZONE = TimeZone.getDefault();
+
+//    后台预加载号段的线程
+    private static final ExecutorService SEGMENT_LOADER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private StringRedisTemplate stringRedisTemplate;
 
+    private final ConcurrentHashMap<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
+    @Override
     public long nextId(String keyPrefix){
+        SegmentBuffer buffer = buffers.get(keyPrefix);
+        if (buffer == null) {
+            buffer = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new);
+        }
 //        1.生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        long nowSecond = localEpochSecond();
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
-//        2.生成序列号
-//        2.1 获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-//        2.2设置Redis自增长
-        Long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
-
-//        拼接并返回
-//        首先将时间戳往左移32位，然后将count填充进去（利用或运算）
-        return timestamp << 32 | count;
+        long day = Math.floorDiv(nowSecond, SECONDS_PER_DAY);
+//        2.从本地号段中取序列号
+        while (true) {
+            Segment segment = buffer.current;
+            if (segment != null && segment.day == day) {
+                long count = segment.cursor.getAndIncrement();
+                if (count <= segment.max) {
+//                    恰好用到预加载位置的线程负责触发预加载
+                    if (count == segment.prefetchAt) {
+                        buffer.prefetch(day);
+                    }
+//                    首先将时间戳往左移32位，然后将count填充进去（利用或运算）
+                    return timestamp << COUNT_BITS | count;
+                }
+            }
+//            号段用完或者跨天，切换号段
+            buffer.switchSegment(segment, day);
+        }
+    }
+
+    private static long localEpochSecond() {
+        long millis = System.currentTimeMillis();
+        return (millis + ZONE.getOffset(millis)) / 1000;
+    }
+
+//    一个号段：[cursor, max] 范围内的序列号可以直接在本地分配
+    private static final class Segment {
+        final long day;
+        final long start;
+        final long max;
+        final long prefetchAt;
+        final AtomicLong cursor;
+
+        Segment(long day, long start, long max) {
+            this.day = day;
+            this.start = start;
+            this.max = max;
+            this.prefetchAt = start + (long) ((max - start + 1) * PREFETCH_RATIO);
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+//    双缓冲：current正在使用，next为预加载好的下一个号段
+    private final class SegmentBuffer {
+        final String keyPrefix;
+        volatile Segment current;
+        Segment next;
+        final AtomicBoolean loading = new AtomicBoolean(false);
+        long step = MIN_STEP;
+        long lastLoadMillis;
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        void prefetch(long day) {
+            if (!loading.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                SEGMENT_LOADER.execute(() -> {
+                    try {
+                        Segment segment = load(day);
+                        synchronized (this) {
+//                            预加载期间可能已经同步加载过更新的号段，比当前号段还旧的预加载结果直接丢弃，否则id会回退
+                            if (next == null && !isStale(segment, current)) {
+                                next = segment;
+                            }
+                        }
+                    } catch (Exception e) {
+                        log.error("预加载id号段失败,keyPrefix:{}", keyPrefix, e);
+                    } finally {
+                        loading.set(false);
+                    }
+                });
+            } catch (RuntimeException e) {
+                loading.set(false);
+                throw e;
+            }
+        }
+
+        synchronized void switchSegment(Segment old, long day) {
+            if (current != old) {
+//                其他线程已经切换过了
+                return;
+            }
+            Segment segment = next;
+            next = null;
+            if (segment == null || segment.day != day || isStale(segment, old)) {
+//                预加载还没完成或者已经跨天，只能同步加载
+                segment = load(day);
+            }
+            current = segment;
+        }
+
+//        号段与当前号段同一天且起点不大于当前号段的最大值，说明是在当前号段之前租用的
+        private boolean isStale(Segment segment, Segment current) {
+            return current != null && segment.day == current.day && segment.start <= current.max;
+        }
+
+//        INCRBY icr:{keyPrefix}:{yyyy:MM:dd} step，返回值就是号段的最大值
+        Segment load(long day) {
+            long size = nextStep();
+            String date = LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+            Long max = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, size);
+            if (max == null) {
+                throw new IllegalStateException("租用id号段失败,keyPrefix:" + keyPrefix);
+            }
+            return new Segment(day, max - size + 1, max);
+        }
+
+//        根据上一个号段的使用时长自适应调整号段大小
+        synchronized long nextStep() {
+            long now = System.currentTimeMillis();
+            if (lastLoadMillis > 0) {
+                long elapsed = now - lastLoadMillis;
+                if (elapsed < SEGMENT_DURATION_MILLIS / 2) {
+                    step = Math.min(step * 2, MAX_STEP);
+                } else if (elapsed > SEGMENT_DURATION_MILLIS * 2) {
+                    step = Math.max(step / 2, MIN_STEP);
+                }
+            }
+            lastLoadMillis = now;
+            return step;
+        }
     }
 }
@@ -0,0 +1,320 @@
+package com.hmdp.utils;
+
+import cn.hutool.crypto.digest.DigestUtil;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import io.lettuce.core.event.connection.ConnectedEvent;
+import io.lettuce.core.resource.ClientResources;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.util.FileCopyUtils;
+import reactor.core.Disposable;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Lua脚本注册表
+ * <p>
+ * 启动时扫描classpath根目录下的所有 *.lua，脚本名为去掉扩展名的文件名（seckill.lua -> seckill），
+ * 读取内容、计算SHA1后SCRIPT LOAD到Redis；连接重连后重新加载，Redis重启或主从切换后脚本缓存为空也能继续EVALSHA。
+ * 执行时只发送EVALSHA，参数直接使用byte[]，不经过RedisTemplate的序列化器；
+ * 仍然遇到NOSCRIPT时先SCRIPT LOAD再重试一次，不会把整个脚本内容随请求发送。
+ * 每个脚本记录调用次数和按2的幂分桶的耗时直方图。本项目的脚本都返回整数。
+ */
+@Slf4j
+@Component
+public class RedisScriptRegistry {
+    private static final String LOCATION = "classpath*:*.lua";
+//    耗时直方图的桶数，第i个桶记录 [2^(i-1), 2^i) 微秒的调用
+    private static final int HISTOGRAM_BUCKETS = 32;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ClientResources clientResources;
+    private final Map<String, Script> scripts = new LinkedHashMap<>();
+
+    private Disposable reconnectSubscription;
+    private final AtomicBoolean reloadScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService reloadExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "redis-script-reload");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public RedisScriptRegistry(StringRedisTemplate stringRedisTemplate, ClientResources clientResources) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.clientResources = clientResources;
+    }
+
+    @PostConstruct
+    private void init() throws IOException {
+        for (Resource resource : new PathMatchingResourcePatternResolver().getResources(LOCATION)) {
+            String filename = resource.getFilename();
+            if (filename == null) {
+                continue;
+            }
+            String name = filename.substring(0, filename.length() - ".lua".length());
+            try (InputStream in = resource.getInputStream()) {
+                scripts.putIfAbsent(name, new Script(name, FileCopyUtils.copyToByteArray(in)));
+            }
+        }
+        log.info("加载Lua脚本:{}", scripts.keySet());
+        loadAll();
+//        事件在Lettuce的IO线程中发布，不能在这里同步访问Redis，交给单独的线程稍后加载
+        reconnectSubscription = clientResources.eventBus().get()
+                .filter(event -> event instanceof ConnectedEvent)
+                .subscribe(event -> scheduleReload());
+    }
+
+    @PreDestroy
+    private void destroy(){
+        if (reconnectSubscription != null) {
+            reconnectSubscription.dispose();
+        }
+        reloadExecutor.shutdownNow();
+    }
+
+    /**
+     * 同步执行脚本
+     * @param name 脚本名，即不带扩展名的文件名
+     */
+    public Long execute(String name, List<byte[]> keys, byte[]... args){
+        Script script = script(name);
+        byte[][] keysAndArgs = new byte[keys.size() + args.length][];
+        for (int i = 0; i < keys.size(); i++) {
+            keysAndArgs[i] = keys.get(i);
+        }
+        System.arraycopy(args, 0, keysAndArgs, keys.size(), args.length);
+        long start = System.nanoTime();
+        boolean failed = false;
+        try {
+            return evalSha(script, keys.size(), keysAndArgs);
+        } catch (RuntimeException e) {
+            if (!isNoScript(e)) {
+                failed = true;
+                throw e;
+            }
+            script.noScript.increment();
+            load(script);
+            return evalSha(script, keys.size(), keysAndArgs);
+        } finally {
+            script.record(System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * 通过Lettuce的异步命令执行脚本，等待Redis响应期间不占用线程；回调在Lettuce的IO线程中执行，不能在其中同步访问Redis
+     */
+    public CompletableFuture<Long> executeAsync(String name, byte[][] keys, byte[]... args){
+        Script script = script(name);
+        long start = System.nanoTime();
+        return withAsyncCommands(commands -> evalShaAsync(commands, script, keys, args)
+                .handle((result, e) -> {
+                    if (e == null) {
+                        return CompletableFuture.completedFuture(result);
+                    }
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    if (!isNoScript(cause)) {
+                        CompletableFuture<Long> failed = new CompletableFuture<>();
+                        failed.completeExceptionally(cause);
+                        return failed;
+                    }
+                    script.noScript.increment();
+                    return commands.scriptLoad(script.body).toCompletableFuture()
+                            .thenCompose(sha -> evalShaAsync(commands, script, keys, args));
+                })
+                .thenCompose(Function.identity())
+                .whenComplete((result, e) -> script.record(System.nanoTime() - start, e != null)));
+    }
+
+    /**
+     * 数字参数直接写成ASCII字节，不经过String
+     */
+    public static byte[] arg(long value){
+        if (value == Long.MIN_VALUE) {
+            return arg(String.valueOf(value));
+        }
+        int length = value < 0 ? 2 : 1;
+        for (long v = Math.abs(value); v >= 10; v /= 10) {
+            length++;
+        }
+        byte[] bytes = new byte[length];
+        long v = Math.abs(value);
+        for (int i = length - 1; i >= 0; i--) {
+            bytes[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        if (value < 0) {
+            bytes[0] = '-';
+        }
+        return bytes;
+    }
+
+    public static byte[] arg(String value){
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public Map<String, Map<String, Object>> getStats(){
+        Map<String, Map<String, Object>> stats = new LinkedHashMap<>();
+        scripts.forEach((name, script) -> stats.put(name, script.snapshot()));
+        return stats;
+    }
+
+    private Script script(String name){
+        Script script = scripts.get(name);
+        if (script == null) {
+            throw new IllegalArgumentException("Lua脚本不存在:" + name);
+        }
+        return script;
+    }
+
+    private Long evalSha(Script script, int numKeys, byte[][] keysAndArgs){
+        return stringRedisTemplate.execute((RedisCallback<Long>) connection ->
+                connection.scriptingCommands().evalSha(script.sha1, ReturnType.INTEGER, numKeys, keysAndArgs));
+    }
+
+    private static CompletableFuture<Long> evalShaAsync(RedisClusterAsyncCommands<byte[], byte[]> commands,
+                                                        Script script, byte[][] keys, byte[][] args){
+        return commands.<Long>evalsha(script.sha1, ScriptOutputType.INTEGER, keys, args).toCompletableFuture();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T withAsyncCommands(Function<RedisClusterAsyncCommands<byte[], byte[]>, T> action){
+        RedisConnection connection = stringRedisTemplate.getRequiredConnectionFactory().getConnection();
+        try {
+//            默认共享同一个原生连接，关闭RedisConnection不会关闭它
+            return action.apply((RedisClusterAsyncCommands<byte[], byte[]>) connection.getNativeConnection());
+        } finally {
+            connection.close();
+        }
+    }
+
+//    集群模式下SCRIPT LOAD会发送到所有主节点
+    private void load(Script script){
+        stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.scriptingCommands().scriptLoad(script.body));
+    }
+
+    private void loadAll(){
+        for (Script script : scripts.values()) {
+            try {
+                load(script);
+            } catch (Exception e) {
+//                Redis暂时不可用时不影响启动，执行时遇到NOSCRIPT会再加载
+                log.error("加载Lua脚本{}失败", script.name, e);
+            }
+        }
+    }
+
+    private void scheduleReload(){
+        if (reloadScheduled.compareAndSet(false, true)) {
+            reloadExecutor.schedule(() -> {
+                reloadScheduled.set(false);
+                loadAll();
+            }, 100, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static boolean isNoScript(Throwable e){
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause.getMessage() != null && cause.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Script {
+        final String name;
+        final byte[] body;
+        final String sha1;
+        final LongAdder calls = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder noScript = new LongAdder();
+        final LongAdder totalMicros = new LongAdder();
+        final LongAdder[] histogram = new LongAdder[HISTOGRAM_BUCKETS];
+
+        Script(String name, byte[] body) {
+            this.name = name;
+            this.body = body;
+            this.sha1 = DigestUtil.sha1Hex(body);
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                histogram[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos, boolean failed) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            calls.increment();
+            totalMicros.add(micros);
+            if (failed) {
+                errors.increment();
+            }
+            int bucket = Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            histogram[bucket].increment();
+        }
+
+//        分位数取所在桶的上界，精度为2倍
+        Map<String, Object> snapshot() {
+            long[] counts = new long[HISTOGRAM_BUCKETS];
+            long total = 0;
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                counts[i] = histogram[i].sum();
+                total += counts[i];
+            }
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            long callCount = calls.sum();
+            snapshot.put("calls", callCount);
+            snapshot.put("errors", errors.sum());
+            snapshot.put("noScript", noScript.sum());
+            snapshot.put("avgMicros", callCount == 0 ? 0 : totalMicros.sum() / callCount);
+            snapshot.put("p50Micros", percentile(counts, total, 0.5));
+            snapshot.put("p99Micros", percentile(counts, total, 0.99));
+            snapshot.put("p999Micros", percentile(counts, total, 0.999));
+            Map<String, Long> buckets = new LinkedHashMap<>();
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                if (counts[i] > 0) {
+                    buckets.put("<" + (1L << i), counts[i]);
+                }
+            }
+            snapshot.put("histogramMicros", buckets.isEmpty() ? Collections.emptyMap() : buckets);
+            return snapshot;
+        }
+
+        private static long percentile(long[] counts, long total, double quantile) {
+            if (total == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(total * quantile);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (counts.length - 1);
+        }
+    }
+}
@@ -1,48 +1,54 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
-import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
-import javax.annotation.Resource;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
-public class RefreshTokenInterceptor implements HandlerInterceptor {
+public class RefreshTokenInterceptor implements AsyncHandlerInterceptor {
 //    由于LoginInterceptor这个类是我们自己创建的，所以spring并不知道这个类
 //    所以使用Resource和Autowired无效,就需要我们自己创建构造器,同时在使用这个类的spring类中进行注入
 //    在MvcConfig中注入
-    @Resource
-    private StringRedisTemplate stringRedisTemplate;
-    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate) {
-        this.stringRedisTemplate = stringRedisTemplate;
+    private final LoginSessionCache loginSessionCache;
+    private final SignedTokenService signedTokenService;
+    public RefreshTokenInterceptor(LoginSessionCache loginSessionCache, SignedTokenService signedTokenService) {
+        this.loginSessionCache = loginSessionCache;
+        this.signedTokenService = signedTokenService;
     }
 
     @Override
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+//        0.清除线程上可能残留的用户，只信任本次请求的token
+        UserHolder.removeUser();
 //        1.获取 请求头中的token
         String token = request.getHeader("authorization");
         if (StrUtil.isBlank(token)) {
             return true;
         }
-//        2.基于token获取redis的用户
-        Map<Object, Object> userMap = stringRedisTemplate.opsForHash()
-                .entries(RedisConstants.LOGIN_USER_KEY + token);
+//        签名token只在本地校验，剩余有效期不足一半时通过响应头返回续签的token
+        if (signedTokenService.isSignedToken(token)) {
+            SignedTokenService.Claims claims = signedTokenService.verify(token);
+            if (claims == null) {
+                return true;
+            }
+            UserHolder.saveUser(claims.getUser());
+            String renewed = signedTokenService.renewIfNeeded(claims);
+            if (renewed != null) {
+                response.setHeader("authorization", renewed);
+            }
+            return true;
+        }
+//        2.基于token获取用户，先查本地会话缓存，未命中再查redis；token有效期由会话缓存在后台批量刷新
+        UserDTO userDTO = loginSessionCache.get(token);
 //        3.判断用户是否存在
-        if (userMap.isEmpty()){
+        if (userDTO == null){
             return true;
         }
-//        5.将查询到的HashMap转换成UserDTO
-        UserDTO userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
-//        6.存在,将用户信息保存到TreadTool中
+//        4.存在,将用户信息保存到TreadTool中
         UserHolder.saveUser(userDTO);
-//        7.刷新token有效期
-        stringRedisTemplate.expire(RedisConstants.LOGIN_USER_KEY + token,RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES);
-//        6.放行
+//        5.放行
         return true;
     }
 
@@ -51,4 +57,11 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
 //        移除用户
         UserHolder.removeUser();
     }
+
+//    处理器返回CompletableFuture时请求转为异步，原线程不会调用afterCompletion，在这里移除用户，
+//    否则线程被下一个请求复用时会带着上一个用户通过LoginInterceptor
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserHolder.removeUser();
+    }
 }
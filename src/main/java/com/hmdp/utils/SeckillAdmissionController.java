@@ -0,0 +1,286 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 秒杀接口的准入控制
+ * <p>
+ * 请求数远大于库存时，多出来的请求到Redis也只能得到"库存不足"，在本地先按三层规则拒绝：
+ * 同一用户的请求频率、订单消费积压、每张券的令牌桶。令牌桶速率按剩余库存和节点数计算，
+ * 所有节点加起来每秒放行的请求约为剩余库存的 admit-factor 倍。
+ * 限流使用GCRA算法，每个桶只有一个long（理论到达时间），CAS更新，不加锁。
+ * 剩余库存、积压和节点数由后台线程定时采样，请求线程只读本地变量。
+ */
+@Slf4j
+@Component
+public class SeckillAdmissionController {
+//    用户限流的槽位数，按用户和券散列，冲突的用户共享一个槽位，内存固定
+    private static final int USER_SLOTS = 1 << 16;
+//    超过这个时间没有请求的券不再采样
+    private static final long IDLE_VOUCHER_MILLIS = 60_000L;
+//    空闲超过这个时间的消费者视为已下线，不计入节点数
+    private static final long CONSUMER_ALIVE_MILLIS = 30_000L;
+//    nanoTime可能为负数，统一减去启动时的值，桶的初始值0即表示令牌已满
+    private static final long ORIGIN_NANOS = System.nanoTime();
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.seckill.admission.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.seckill.admission.admit-factor:2.0}")
+    private double admitFactor;
+    @Value("${hmdp.seckill.admission.min-permits-per-second:10}")
+    private long minPermitsPerSecond;
+    @Value("${hmdp.seckill.admission.user-permits-per-second:2}")
+    private long userPermitsPerSecond;
+    @Value("${hmdp.seckill.admission.user-burst:2}")
+    private long userBurst;
+    @Value("${hmdp.seckill.admission.max-pending:10000}")
+    private long maxPending;
+    @Value("${hmdp.seckill.admission.max-lag-millis:5000}")
+    private long maxLagMillis;
+    @Value("${hmdp.seckill.admission.sample-interval-millis:500}")
+    private long sampleIntervalMillis;
+
+    private final Map<Long, VoucherBucket> voucherBuckets = new ConcurrentHashMap<>();
+    private final AtomicLongArray userSlots = new AtomicLongArray(USER_SLOTS);
+    private volatile boolean backlogged;
+    private volatile long pending;
+    private volatile long lagMillis;
+    private volatile int nodes = 1;
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder userLimited = new LongAdder();
+    private final LongAdder voucherLimited = new LongAdder();
+    private final LongAdder backlogRejected = new LongAdder();
+
+    private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "seckill-admission-sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SeckillAdmissionController(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void init(){
+        if (enabled) {
+            sampler.scheduleWithFixedDelay(this::sample, 0, sampleIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void destroy(){
+        sampler.shutdownNow();
+    }
+
+    public enum Decision {
+        ACCEPTED, USER_LIMITED, BACKLOGGED, VOUCHER_LIMITED
+    }
+
+    /**
+     * 判断秒杀请求能否进入Redis
+     * @param buckets 券的库存桶数量，用于采样剩余库存
+     */
+    public Decision tryAdmit(long voucherId, long userId, int buckets){
+        if (!enabled) {
+            return Decision.ACCEPTED;
+        }
+        long now = System.nanoTime() - ORIGIN_NANOS;
+//        先限制单个用户，避免少数用户的重复点击消耗券的令牌
+        long userInterval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, userPermitsPerSecond);
+        if (!tryAcquire(userSlots, userSlot(voucherId, userId), now, userInterval, userInterval * userBurst)) {
+            userLimited.increment();
+            return Decision.USER_LIMITED;
+        }
+        if (backlogged) {
+            backlogRejected.increment();
+            return Decision.BACKLOGGED;
+        }
+        VoucherBucket bucket = voucherBucket(voucherId, buckets);
+        bucket.lastAccessMillis = System.currentTimeMillis();
+        if (!bucket.tryAcquire(now)) {
+            voucherLimited.increment();
+            return Decision.VOUCHER_LIMITED;
+        }
+        accepted.increment();
+        return Decision.ACCEPTED;
+    }
+
+    public Map<String, Object> getStats(){
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("accepted", accepted.sum());
+        stats.put("userLimited", userLimited.sum());
+        stats.put("backlogRejected", backlogRejected.sum());
+        stats.put("voucherLimited", voucherLimited.sum());
+        stats.put("nodes", nodes);
+        stats.put("pending", pending);
+        stats.put("lagMillis", lagMillis);
+        stats.put("backlogged", backlogged);
+        Map<Long, Long> permits = new LinkedHashMap<>();
+        voucherBuckets.forEach((voucherId, bucket) -> permits.put(voucherId, bucket.permitsPerSecond));
+        stats.put("voucherPermitsPerSecond", permits);
+        return stats;
+    }
+
+//    新出现的券立即按剩余库存确定速率，开抢的第一波请求也受控
+    private VoucherBucket voucherBucket(long voucherId, int buckets){
+        VoucherBucket bucket = voucherBuckets.get(voucherId);
+        if (bucket != null && bucket.buckets == buckets) {
+            return bucket;
+        }
+        VoucherBucket created = new VoucherBucket(buckets);
+        resize(voucherId, created);
+        voucherBuckets.put(voucherId, created);
+        return created;
+    }
+
+//    后台采样：订单消费积压、存活节点数、每张券的剩余库存
+    private void sample(){
+        try {
+            sampleBacklog();
+            long now = System.currentTimeMillis();
+            voucherBuckets.forEach((voucherId, bucket) -> {
+                if (now - bucket.lastAccessMillis > IDLE_VOUCHER_MILLIS) {
+                    voucherBuckets.remove(voucherId, bucket);
+                    return;
+                }
+                resize(voucherId, bucket);
+            });
+        } catch (Exception e) {
+            log.error("秒杀准入采样失败", e);
+        }
+    }
+
+//    streams.order的消息被ack后不会删除，XLEN不代表积压，改用消费者组的pending数量和投递延迟
+    private void sampleBacklog(){
+        StreamInfo.XInfoStream streamInfo = stringRedisTemplate.opsForStream().info(SECKILL_ORDER_STREAM);
+        stringRedisTemplate.opsForStream().groups(SECKILL_ORDER_STREAM).stream()
+                .filter(group -> SECKILL_ORDER_GROUP.equals(group.groupName()))
+                .findFirst()
+                .ifPresent(group -> {
+                    pending = group.pendingCount();
+                    long lastGenerated = RecordId.of(streamInfo.lastGeneratedId()).getTimestamp();
+                    long lastDelivered = RecordId.of(group.lastDeliveredId()).getTimestamp();
+                    lagMillis = Math.max(0, lastGenerated - lastDelivered);
+                });
+        backlogged = pending > maxPending || lagMillis > maxLagMillis;
+//        消费者名称为 pid@host-cN，去掉后缀即为节点
+        Set<String> aliveNodes = new HashSet<>();
+        stringRedisTemplate.opsForStream().consumers(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP).forEach(consumer -> {
+            if (consumer.idleTimeMs() < CONSUMER_ALIVE_MILLIS) {
+                String name = consumer.consumerName();
+                int dash = name.lastIndexOf('-');
+                aliveNodes.add(dash > 0 ? name.substring(0, dash) : name);
+            }
+        });
+        nodes = Math.max(1, aliveNodes.size());
+    }
+
+    private void resize(long voucherId, VoucherBucket bucket){
+        long stock = remainingStock(voucherId, bucket.buckets);
+        long permits = Math.max(minPermitsPerSecond, (long) Math.ceil(stock * admitFactor / nodes));
+        bucket.resize(permits);
+    }
+
+    private long remainingStock(long voucherId, int buckets){
+        List<String> keys = new ArrayList<>(buckets);
+        if (buckets <= 1) {
+            keys.add(SECKILL_STOCK_KEY + voucherId);
+        } else {
+            for (int i = 0; i < buckets; i++) {
+                keys.add(SeckillStockBuckets.stockKey(voucherId, i));
+            }
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        long stock = 0;
+        if (values != null) {
+            for (String value : values) {
+                if (value != null) {
+                    stock += Math.max(0, Long.parseLong(value));
+                }
+            }
+        }
+        return stock;
+    }
+
+    private static int userSlot(long voucherId, long userId){
+        long hash = (userId * 31 + voucherId) * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 48);
+    }
+
+//    GCRA：下一个请求的理论到达时间不能超过 now + limit，limit = interval * burst
+    private static boolean tryAcquire(AtomicLongArray slots, int slot, long now, long interval, long limit){
+        while (true) {
+            long tat = slots.get(slot);
+            long next = Math.max(tat, now) + interval;
+            if (next - now > limit) {
+                return false;
+            }
+            if (slots.compareAndSet(slot, tat, next)) {
+                return true;
+            }
+        }
+    }
+
+    private static final class VoucherBucket {
+        final int buckets;
+        final AtomicLong tat = new AtomicLong();
+        volatile long permitsPerSecond;
+        volatile long intervalNanos;
+        volatile long lastAccessMillis = System.currentTimeMillis();
+
+        VoucherBucket(int buckets) {
+            this.buckets = buckets;
+        }
+
+        void resize(long permits) {
+            permitsPerSecond = permits;
+            intervalNanos = Math.max(1, TimeUnit.SECONDS.toNanos(1) / permits);
+        }
+
+//        突发容量为一秒的令牌
+        boolean tryAcquire(long now) {
+            long interval = intervalNanos;
+            long limit = TimeUnit.SECONDS.toNanos(1);
+            while (true) {
+                long current = tat.get();
+                long next = Math.max(current, now) + interval;
+                if (next - now > limit) {
+                    return false;
+                }
+                if (tat.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.hmdp.utils;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 秒杀库存分桶
+ * <p>
+ * 热门券的库存拆到N个桶：库存 seckill:stock:{voucherId:b}，下单用户 seckill:order:{voucherId:b}。
+ * 同一个桶的两个key使用相同的hash tag，在Redis Cluster中位于同一个slot，扣减和去重在一个脚本里完成；不同的桶分散到不同节点。
+ * 用户按id固定路由到一个主桶，一人一单由主桶的用户集合保证；主桶库存扣完后再从其他桶扣减。
+ * 桶数量保存在 seckill:buckets:{voucherId}，不存在时使用原来的单个库存key。
+ */
+public final class SeckillStockBuckets {
+//    本地用一个long记录已经扣完的桶
+    public static final int MAX_BUCKETS = 64;
+
+    private SeckillStockBuckets() {
+    }
+
+    public static String stockKey(long voucherId, int bucket){
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + bucket + "}";
+    }
+
+    public static String orderKey(long voucherId, int bucket){
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + bucket + "}";
+    }
+
+    /**
+     * 用户的主桶，先打散用户id，连续注册的用户也能均匀分布
+     */
+    public static int homeBucket(long userId, int buckets){
+        long hash = userId * 0x9E3779B97F4A7C15L;
+        return (int) ((hash >>> 32) % buckets);
+    }
+
+    /**
+     * 根据库存决定桶数量：每个桶至少 minBucketStock 件，最多 maxBuckets 个桶
+     */
+    public static int bucketCount(long stock, int maxBuckets, long minBucketStock){
+        int limit = Math.min(maxBuckets, MAX_BUCKETS);
+        if (limit <= 1 || minBucketStock <= 0) {
+            return 1;
+        }
+        return (int) Math.max(1, Math.min(limit, stock / minBucketStock));
+    }
+
+    /**
+     * 把数量平均分到各个桶，余数分给前面的桶
+     */
+    public static long[] split(long count, int buckets){
+        long[] parts = new long[buckets];
+        long base = count / buckets;
+        long remainder = count % buckets;
+        for (int i = 0; i < buckets; i++) {
+            parts[i] = base + (i < remainder ? 1 : 0);
+        }
+        return parts;
+    }
+}
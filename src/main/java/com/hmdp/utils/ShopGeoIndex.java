@@ -0,0 +1,138 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResult;
+import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.domain.geo.GeoReference;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_LOADED_KEY;
+
+/**
+ * 店铺的GEO索引
+ * <p>
+ * 每个店铺类型一个GEO集合 shop:geo:{typeId}，成员为店铺id。
+ * 第一次启动时从tb_shop分批读取坐标，按类型管道GEOADD；之后由新增、修改店铺增量维护。
+ */
+@Slf4j
+@Component
+public class ShopGeoIndex {
+    private static final int LOAD_BATCH_SIZE = 1000;
+    private static final String LOAD_LOCK_NAME = "shop:geo:load";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    @PostConstruct
+    private void init(){
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(SHOP_GEO_LOADED_KEY))) {
+            return;
+        }
+//        多个节点同时启动时只由一个节点导入
+        ILock lock = new SimpleRedisLock(LOAD_LOCK_NAME, stringRedisTemplate, redisScriptRegistry);
+        if (!lock.tryLock(300L)) {
+            return;
+        }
+        try {
+            load();
+        } finally {
+            lock.unLock();
+        }
+    }
+
+//    按id分批读取，每批一次管道写入所有类型
+    private void load(){
+        long lastId = 0;
+        long total = 0;
+        while (true) {
+            List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                    .select("id", "type_id", "x", "y").gt("id", lastId).orderByAsc("id").last("LIMIT " + LOAD_BATCH_SIZE));
+            if (!shops.isEmpty()) {
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                    for (Shop shop : shops) {
+                        if (hasLocation(shop)) {
+                            stringConnection.geoAdd(SHOP_GEO_KEY + shop.getTypeId(), new Point(shop.getX(), shop.getY()), shop.getId().toString());
+                        }
+                    }
+                    return null;
+                });
+                lastId = shops.get(shops.size() - 1).getId();
+                total += shops.size();
+            }
+            if (shops.size() < LOAD_BATCH_SIZE) {
+                break;
+            }
+        }
+        stringRedisTemplate.opsForValue().set(SHOP_GEO_LOADED_KEY, String.valueOf(System.currentTimeMillis()));
+        log.info("店铺GEO索引导入完成，店铺数:{}", total);
+    }
+
+    /**
+     * 新增店铺，或修改店铺后更新坐标和类型
+     * @param previous 修改前的店铺，新增时为null
+     */
+    public void save(Shop previous, Shop current){
+        if (previous != null && hasLocation(previous)
+                && (!hasLocation(current) || !Objects.equals(previous.getTypeId(), current.getTypeId()))) {
+            stringRedisTemplate.opsForGeo().remove(SHOP_GEO_KEY + previous.getTypeId(), previous.getId().toString());
+        }
+        if (hasLocation(current)) {
+            stringRedisTemplate.opsForGeo().add(SHOP_GEO_KEY + current.getTypeId(),
+                    new Point(current.getX(), current.getY()), current.getId().toString());
+        }
+    }
+
+    /**
+     * GEOSEARCH shop:geo:{typeId} FROMLONLAT x y BYRADIUS radius m ASC COUNT from+count WITHDIST
+     * <p>
+     * GEOSEARCH不支持偏移量，取到第 from+count 个后跳过前from个
+     * @return 按距离升序的店铺id -> 距离（米）
+     */
+    public Map<Long, Double> search(Long typeId, double x, double y, double radiusMeters, int from, int count){
+        if (from < 0 || count <= 0) {
+            return Collections.emptyMap();
+        }
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().search(
+                SHOP_GEO_KEY + typeId,
+                GeoReference.fromCoordinate(x, y),
+                new Distance(radiusMeters, RedisGeoCommands.DistanceUnit.METERS),
+                RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().sortAscending().limit(from + count));
+        if (results == null || results.getContent().size() <= from) {
+            return Collections.emptyMap();
+        }
+        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> content = new ArrayList<>(results.getContent());
+        Map<Long, Double> distances = new LinkedHashMap<>();
+        for (GeoResult<RedisGeoCommands.GeoLocation<String>> result : content.subList(from, content.size())) {
+            distances.put(Long.valueOf(result.getContent().getName()), result.getDistance().getValue());
+        }
+        return distances;
+    }
+
+    private static boolean hasLocation(Shop shop){
+        return shop.getTypeId() != null && shop.getX() != null && shop.getY() != null;
+    }
+}
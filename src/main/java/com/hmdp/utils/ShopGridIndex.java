@@ -0,0 +1,549 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SHOP_GRID_CHANNEL;
+
+/**
+ * 进程内的店铺网格索引，附近店铺查询不访问Redis
+ * <p>
+ * 经纬度按 cell-size-meters 划分网格，每个店铺编码为 (类型, 列, 行) 组成的long，
+ * 所有店铺按这个编码排序后存放在几个平行的基本类型数组中，不为每个店铺创建对象。
+ * 同一类型同一列的格子在数组中是连续的，查询时对半径覆盖的每一列二分查找一次，再顺序扫描这一列的几个格子。
+ * 排序数组是不可变的快照，店铺修改通过发布订阅通知所有节点，先写入一个小的覆盖表，
+ * 覆盖表超过 compact-threshold 时在后台合并生成新快照；另外定时从tb_shop全量重建，修正漏掉的消息。
+ */
+@Slf4j
+@Component
+public class ShopGridIndex {
+    private static final int LOAD_BATCH_SIZE = 1000;
+//    与Redis GEO使用的地球半径一致，两种索引算出的距离相同
+    private static final double EARTH_RADIUS_METERS = 6372797.560856;
+    private static final double METERS_PER_DEGREE = Math.PI * EARTH_RADIUS_METERS / 180;
+//    编码中类型占16位，列、行各占24位
+    private static final long TYPE_LIMIT = 1L << 16;
+    private static final long CELL_MASK = (1L << 24) - 1;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.shop.grid.enabled:false}")
+    private boolean enabled;
+    @Value("${hmdp.shop.grid.cell-size-meters:1000}")
+    private double cellSizeMeters;
+    @Value("${hmdp.shop.grid.compact-threshold:1024}")
+    private int compactThreshold;
+    @Value("${hmdp.shop.grid.reload-interval-minutes:60}")
+    private long reloadIntervalMinutes;
+
+    private double cellDegrees;
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+//    快照之后修改过的店铺，id -> 最新数据，removed表示店铺已不在索引中
+    private final Map<Long, Entry> overlay = new ConcurrentHashMap<>();
+    private final AtomicBoolean compactScheduled = new AtomicBoolean();
+
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder queryNanos = new LongAdder();
+    private final LongAdder scanned = new LongAdder();
+    private volatile long lastBuildMillis;
+
+    private final ScheduledExecutorService buildExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "shop-grid-build");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    private void init(){
+        if (!enabled) {
+            return;
+        }
+        cellDegrees = cellSizeMeters / METERS_PER_DEGREE;
+//        先订阅再加载，加载期间的修改留在覆盖表中
+        redisMessageListenerContainer.addMessageListener(this::onChange, new ChannelTopic(SHOP_GRID_CHANNEL));
+        reload();
+        if (reloadIntervalMinutes > 0) {
+            buildExecutor.scheduleWithFixedDelay(this::reloadQuietly, reloadIntervalMinutes, reloadIntervalMinutes, TimeUnit.MINUTES);
+        }
+    }
+
+    @PreDestroy
+    private void destroy(){
+        buildExecutor.shutdownNow();
+    }
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * 新增或修改店铺后通知所有节点，未开启网格索引的节点也要发送
+     * @param shop 修改后的店铺
+     */
+    public void publish(Shop shop){
+        String message = shop.getId() + "," + shop.getTypeId() + "," + shop.getX() + "," + shop.getY() + "," + shop.getScore();
+        stringRedisTemplate.convertAndSend(SHOP_GRID_CHANNEL, message);
+    }
+
+    /**
+     * 查询半径内指定类型距离最近的店铺
+     * <p>
+     * 用大小为 from+count 的最大堆保留最近的店铺，距离相同时评分高的在前
+     * @return 按距离升序的店铺id -> 距离（米）
+     */
+    public Map<Long, Double> search(Long typeId, double x, double y, double radiusMeters, int from, int count){
+        long start = System.nanoTime();
+        if (typeId == null || typeId < 0 || typeId >= TYPE_LIMIT || from < 0 || count <= 0 || from > Integer.MAX_VALUE - count) {
+            return Collections.emptyMap();
+        }
+        int limit = from + count;
+        TopK top = new TopK(limit);
+        Snapshot current = snapshot;
+        Map<Long, Entry> changed = overlay;
+        boolean hasChanges = !changed.isEmpty();
+        double latDegrees = radiusMeters / METERS_PER_DEGREE;
+        double lonDegrees = latDegrees / Math.max(Math.cos(Math.toRadians(Math.min(89.0, Math.abs(y) + latDegrees))), 1e-6);
+        long minCol = column(x - lonDegrees);
+        long maxCol = column(x + lonDegrees);
+        long minRow = row(y - latDegrees);
+        long maxRow = row(y + latDegrees);
+        long visited = 0;
+        for (long col = minCol; col <= maxCol; col++) {
+            long low = encode(typeId, col, minRow);
+            long high = encode(typeId, col, maxRow);
+            for (int i = current.lowerBound(low); i < current.size && current.keys[i] <= high; i++) {
+                visited++;
+                if (hasChanges && changed.containsKey(current.ids[i])) {
+                    continue;
+                }
+                double distance = distance(x, y, current.xs[i], current.ys[i]);
+                if (distance <= radiusMeters) {
+                    top.offer(current.ids[i], distance, current.scores[i]);
+                }
+            }
+        }
+        for (Entry entry : changed.values()) {
+            if (!entry.removed && entry.typeId == typeId) {
+                double distance = distance(x, y, entry.x, entry.y);
+                if (distance <= radiusMeters) {
+                    top.offer(entry.id, distance, entry.score);
+                }
+            }
+        }
+        Map<Long, Double> result = top.drain(from);
+        queries.increment();
+        scanned.add(visited);
+        queryNanos.add(System.nanoTime() - start);
+        return result;
+    }
+
+    public Map<String, Object> getStats(){
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("shops", snapshot.size);
+        stats.put("overlay", overlay.size());
+        stats.put("lastBuildMillis", lastBuildMillis);
+        long count = queries.sum();
+        stats.put("queries", count);
+        stats.put("avgQueryMicros", count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(queryNanos.sum()) / count);
+        stats.put("avgScanned", count == 0 ? 0 : scanned.sum() / count);
+        return stats;
+    }
+
+    private void reloadQuietly(){
+        try {
+            reload();
+        } catch (Exception e) {
+            log.error("重建店铺网格索引失败", e);
+        }
+    }
+
+//    按id分批流式读取tb_shop，直接写入数组，不保留Shop对象
+    private synchronized void reload(){
+        long start = System.currentTimeMillis();
+//        记录加载前的覆盖表，加载完成后只去掉这些，加载期间新到的修改仍然保留
+        Map<Long, Entry> before = new LinkedHashMap<>(overlay);
+        Builder builder = new Builder(LOAD_BATCH_SIZE);
+        long lastId = 0;
+        while (true) {
+            List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                    .select("id", "type_id", "x", "y", "score").gt("id", lastId).orderByAsc("id").last("LIMIT " + LOAD_BATCH_SIZE));
+            for (Shop shop : shops) {
+                if (indexable(shop.getTypeId(), shop.getX(), shop.getY())) {
+                    builder.add(shop.getId(), shop.getTypeId(), shop.getX(), shop.getY(), shop.getScore() == null ? 0 : shop.getScore());
+                }
+            }
+            if (shops.size() < LOAD_BATCH_SIZE) {
+                break;
+            }
+            lastId = shops.get(shops.size() - 1).getId();
+        }
+        snapshot = builder.build();
+        before.forEach(overlay::remove);
+        lastBuildMillis = System.currentTimeMillis() - start;
+        log.info("店铺网格索引构建完成，店铺数:{}，耗时:{}ms", snapshot.size, lastBuildMillis);
+    }
+
+//    把覆盖表合并进快照，只复制数组，不访问数据库
+    private synchronized void compact(){
+        Map<Long, Entry> merged = new LinkedHashMap<>(overlay);
+        Snapshot current = snapshot;
+        Builder builder = new Builder(current.size + merged.size());
+        for (int i = 0; i < current.size; i++) {
+            if (!merged.containsKey(current.ids[i])) {
+                builder.add(current.ids[i], current.typeIds[i], current.xs[i], current.ys[i], current.scores[i]);
+            }
+        }
+        for (Entry entry : merged.values()) {
+            if (!entry.removed) {
+                builder.add(entry.id, entry.typeId, entry.x, entry.y, entry.score);
+            }
+        }
+        snapshot = builder.build();
+//        合并期间又被修改的店铺，覆盖表中已是新的对象，不能删除
+        merged.forEach(overlay::remove);
+    }
+
+    private void onChange(Message message, byte[] pattern){
+        try {
+            String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(",");
+            long id = Long.parseLong(parts[0]);
+            Long typeId = "null".equals(parts[1]) ? null : Long.valueOf(parts[1]);
+            Double x = "null".equals(parts[2]) ? null : Double.valueOf(parts[2]);
+            Double y = "null".equals(parts[3]) ? null : Double.valueOf(parts[3]);
+            int score = "null".equals(parts[4]) ? 0 : Integer.parseInt(parts[4]);
+            overlay.put(id, indexable(typeId, x, y) ? new Entry(id, typeId, x, y, score, false) : new Entry(id, 0, 0, 0, 0, true));
+        } catch (RuntimeException e) {
+            log.error("处理店铺修改消息失败", e);
+            return;
+        }
+        if (overlay.size() >= compactThreshold && compactScheduled.compareAndSet(false, true)) {
+            buildExecutor.execute(() -> {
+                try {
+                    compact();
+                } catch (Exception e) {
+                    log.error("合并店铺网格索引失败", e);
+                } finally {
+                    compactScheduled.set(false);
+                }
+            });
+        }
+    }
+
+    private static boolean indexable(Long typeId, Double x, Double y){
+        return typeId != null && typeId >= 0 && typeId < TYPE_LIMIT && x != null && y != null;
+    }
+
+    private long column(double x){
+        return Math.min(CELL_MASK, Math.max(0, (long) Math.floor((x + 180) / cellDegrees)));
+    }
+
+    private long row(double y){
+        return Math.min(CELL_MASK, Math.max(0, (long) Math.floor((y + 90) / cellDegrees)));
+    }
+
+    private static long encode(long typeId, long col, long row){
+        return typeId << 48 | col << 24 | row;
+    }
+
+//    haversine公式
+    private static double distance(double x1, double y1, double x2, double y2){
+        double lat1 = Math.toRadians(y1);
+        double lat2 = Math.toRadians(y2);
+        double u = Math.sin((lat2 - lat1) / 2);
+        double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.sqrt(u * u + Math.cos(lat1) * Math.cos(lat2) * v * v));
+    }
+
+    private static final class Entry {
+        final long id;
+        final long typeId;
+        final double x;
+        final double y;
+        final int score;
+        final boolean removed;
+
+        Entry(long id, long typeId, double x, double y, int score, boolean removed) {
+            this.id = id;
+            this.typeId = typeId;
+            this.x = x;
+            this.y = y;
+            this.score = score;
+            this.removed = removed;
+        }
+    }
+
+//    按编码排序的平行数组
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(new long[0], new long[0], new long[0], new double[0], new double[0], new int[0], 0);
+
+        final long[] keys;
+        final long[] ids;
+        final long[] typeIds;
+        final double[] xs;
+        final double[] ys;
+        final int[] scores;
+        final int size;
+
+        Snapshot(long[] keys, long[] ids, long[] typeIds, double[] xs, double[] ys, int[] scores, int size) {
+            this.keys = keys;
+            this.ids = ids;
+            this.typeIds = typeIds;
+            this.xs = xs;
+            this.ys = ys;
+            this.scores = scores;
+            this.size = size;
+        }
+
+//        第一个编码不小于key的位置
+        int lowerBound(long key) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid] < key) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    private final class Builder {
+        long[] keys;
+        long[] ids;
+        long[] typeIds;
+        double[] xs;
+        double[] ys;
+        int[] scores;
+        int size;
+
+        Builder(int capacity) {
+            int initial = Math.max(16, capacity);
+            keys = new long[initial];
+            ids = new long[initial];
+            typeIds = new long[initial];
+            xs = new double[initial];
+            ys = new double[initial];
+            scores = new int[initial];
+        }
+
+        void add(long id, long typeId, double x, double y, int score) {
+            if (size == keys.length) {
+                int capacity = size + (size >> 1);
+                keys = Arrays.copyOf(keys, capacity);
+                ids = Arrays.copyOf(ids, capacity);
+                typeIds = Arrays.copyOf(typeIds, capacity);
+                xs = Arrays.copyOf(xs, capacity);
+                ys = Arrays.copyOf(ys, capacity);
+                scores = Arrays.copyOf(scores, capacity);
+            }
+            keys[size] = encode(typeId, column(x), row(y));
+            ids[size] = id;
+            typeIds[size] = typeId;
+            xs[size] = x;
+            ys[size] = y;
+            scores[size] = score;
+            size++;
+        }
+
+//        对下标按编码排序后重排所有数组
+        Snapshot build() {
+            long[] order = new long[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            long[] sortKeys = Arrays.copyOf(keys, size);
+            sort(sortKeys, order, 0, size - 1);
+            long[] sortedIds = new long[size];
+            long[] sortedTypes = new long[size];
+            double[] sortedXs = new double[size];
+            double[] sortedYs = new double[size];
+            int[] sortedScores = new int[size];
+            for (int i = 0; i < size; i++) {
+                int index = (int) order[i];
+                sortedIds[i] = ids[index];
+                sortedTypes[i] = typeIds[index];
+                sortedXs[i] = xs[index];
+                sortedYs[i] = ys[index];
+                sortedScores[i] = scores[index];
+            }
+            return new Snapshot(sortKeys, sortedIds, sortedTypes, sortedXs, sortedYs, sortedScores, size);
+        }
+
+        private void sort(long[] sortKeys, long[] order, int low, int high) {
+            while (low < high) {
+                long pivot = sortKeys[(low + high) >>> 1];
+                int i = low;
+                int j = high;
+                while (i <= j) {
+                    while (sortKeys[i] < pivot) {
+                        i++;
+                    }
+                    while (sortKeys[j] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swap(sortKeys, i, j);
+                        swap(order, i, j);
+                        i++;
+                        j--;
+                    }
+                }
+//                先递归较短的一边，栈深度不超过log(n)
+                if (j - low < high - i) {
+                    sort(sortKeys, order, low, j);
+                    low = i;
+                } else {
+                    sort(sortKeys, order, i, high);
+                    high = j;
+                }
+            }
+        }
+
+        private void swap(long[] values, int i, int j) {
+            long value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+    }
+
+//    固定大小的最大堆，堆顶是当前保留的最远的店铺
+//    数组按实际找到的店铺数扩容，翻到很大的页码时也只占用半径内店铺数的空间
+    private static final class TopK {
+        private static final int INITIAL_CAPACITY = 16;
+        final int capacity;
+        long[] ids;
+        double[] distances;
+        int[] scores;
+        int size;
+
+        TopK(int capacity) {
+            this.capacity = capacity;
+            int initial = Math.min(capacity, INITIAL_CAPACITY);
+            ids = new long[initial];
+            distances = new double[initial];
+            scores = new int[initial];
+        }
+
+        void offer(long id, double distance, int score) {
+            if (size < capacity) {
+                if (size == ids.length) {
+                    int grown = (int) Math.min(capacity, ids.length * 2L);
+                    ids = Arrays.copyOf(ids, grown);
+                    distances = Arrays.copyOf(distances, grown);
+                    scores = Arrays.copyOf(scores, grown);
+                }
+                ids[size] = id;
+                distances[size] = distance;
+                scores[size] = score;
+                siftUp(size++);
+            } else if (farther(distances[0], scores[0], distance, score)) {
+                ids[0] = id;
+                distances[0] = distance;
+                scores[0] = score;
+                siftDown(0);
+            }
+        }
+
+//        依次取出堆顶得到由远到近的顺序，反转后跳过前from个
+        Map<Long, Double> drain(int from) {
+            int total = size;
+            long[] sortedIds = new long[total];
+            double[] sortedDistances = new double[total];
+            for (int i = total - 1; i >= 0; i--) {
+                sortedIds[i] = ids[0];
+                sortedDistances[i] = distances[0];
+                size--;
+                if (size > 0) {
+                    ids[0] = ids[size];
+                    distances[0] = distances[size];
+                    scores[0] = scores[size];
+                    siftDown(0);
+                }
+            }
+            if (total <= from) {
+                return Collections.emptyMap();
+            }
+            Map<Long, Double> result = new LinkedHashMap<>();
+            for (int i = from; i < total; i++) {
+                result.put(sortedIds[i], sortedDistances[i]);
+            }
+            return result;
+        }
+
+//        a是否排在b后面：距离更远，或距离相同评分更低
+        private static boolean farther(double distanceA, int scoreA, double distanceB, int scoreB) {
+            return distanceA > distanceB || (distanceA == distanceB && scoreA < scoreB);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!farther(distances[i], scores[i], distances[parent], scores[parent])) {
+                    break;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int left = 2 * i + 1;
+                if (left >= size) {
+                    break;
+                }
+                int child = left + 1 < size && farther(distances[left + 1], scores[left + 1], distances[left], scores[left]) ? left + 1 : left;
+                if (!farther(distances[child], scores[child], distances[i], scores[i])) {
+                    break;
+                }
+                swap(i, child);
+                i = child;
+            }
+        }
+
+        private void swap(int i, int j) {
+            long id = ids[i];
+            ids[i] = ids[j];
+            ids[j] = id;
+            double distance = distances[i];
+            distances[i] = distances[j];
+            distances[j] = distance;
+            int score = scores[i];
+            scores[i] = scores[j];
+            scores[j] = score;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 无状态的签名token
+ * <p>
+ * token = base64url(载荷) + "." + base64url(HMAC-SHA256签名的前16字节)，
+ * 载荷包含token id、用户id、昵称、头像和过期时间，校验只需要在本地计算HMAC，不访问Redis。
+ * 剩余有效期不足一半时签发新token（token id不变，注销时一起失效），通过响应头返回给前端。
+ * hmdp.login.token-mode=signed 时登录签发这种token；两种token可以同时校验，切换模式时已登录的用户不受影响。
+ */
+@Slf4j
+@Component
+public class SignedTokenService {
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final byte VERSION = 1;
+    private static final int SIGNATURE_LENGTH = 16;
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final TokenRevocationList tokenRevocationList;
+
+    @Value("${hmdp.login.token-mode:redis}")
+    private String tokenMode;
+    @Value("${hmdp.login.token-secret:}")
+    private String secret;
+    @Value("${hmdp.login.signed-token-ttl-minutes:36000}")
+    private long ttlMinutes;
+
+    private SecretKeySpec key;
+//    Mac不是线程安全的，每个线程一个
+    private final ThreadLocal<Mac> macs = ThreadLocal.withInitial(this::newMac);
+
+    public SignedTokenService(TokenRevocationList tokenRevocationList) {
+        this.tokenRevocationList = tokenRevocationList;
+    }
+
+    @PostConstruct
+    private void init(){
+        if (StrUtil.isBlank(secret)) {
+//            签发签名token时必须所有节点使用同一个密钥，随机密钥会让其他节点签发的token全部失效
+            if (isSignedMode()) {
+                throw new IllegalStateException("hmdp.login.token-mode=signed 时必须配置hmdp.login.token-secret");
+            }
+            secret = RandomUtil.randomString(32);
+        }
+        key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM);
+    }
+
+    public boolean isSignedMode(){
+        return "signed".equalsIgnoreCase(tokenMode);
+    }
+
+    /**
+     * 原来的token是不含'.'的UUID，据此区分两种token
+     */
+    public boolean isSignedToken(String token){
+        return token != null && token.indexOf('.') > 0;
+    }
+
+    public String issue(UserDTO user){
+        long expireAt = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(ttlMinutes);
+        return sign(new Claims(RandomUtil.getRandom().nextLong(), user, expireAt));
+    }
+
+    /**
+     * 校验签名、过期时间和注销列表
+     * @return 无效时返回null
+     */
+    public Claims verify(String token){
+        int dot = token.indexOf('.');
+        if (dot <= 0) {
+            return null;
+        }
+        byte[] payload;
+        byte[] signature;
+        try {
+            payload = DECODER.decode(token.substring(0, dot));
+            signature = DECODER.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!MessageDigest.isEqual(signature, hmac(payload))) {
+            return null;
+        }
+        Claims claims = decode(payload);
+        if (claims == null || claims.expireAt <= System.currentTimeMillis()) {
+            return null;
+        }
+        if (tokenRevocationList.isRevoked(claims.tokenId)) {
+            return null;
+        }
+        return claims;
+    }
+
+    /**
+     * 剩余有效期不足一半时返回新token，否则返回null
+     */
+    public String renewIfNeeded(Claims claims){
+        long ttlMillis = TimeUnit.MINUTES.toMillis(ttlMinutes);
+        long now = System.currentTimeMillis();
+        if (claims.expireAt - now > ttlMillis / 2) {
+            return null;
+        }
+        return sign(new Claims(claims.tokenId, claims.user, now + ttlMillis));
+    }
+
+    /**
+     * 注销token，续签出的新token使用同一个token id，也一起失效
+     */
+    public void revoke(String token){
+        Claims claims = verify(token);
+        if (claims == null) {
+            return;
+        }
+//        续签后的token最晚在一个完整有效期后过期
+        tokenRevocationList.revoke(claims.tokenId, System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(ttlMinutes));
+    }
+
+    private String sign(Claims claims){
+        byte[] payload = encode(claims);
+        return ENCODER.encodeToString(payload) + "." + ENCODER.encodeToString(hmac(payload));
+    }
+
+    private byte[] hmac(byte[] payload){
+        byte[] full = macs.get().doFinal(payload);
+        return Arrays.copyOf(full, SIGNATURE_LENGTH);
+    }
+
+    private Mac newMac(){
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] encode(Claims claims){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            out.writeLong(claims.tokenId);
+            out.writeLong(claims.expireAt);
+            out.writeLong(claims.user.getId());
+            out.writeUTF(StrUtil.nullToEmpty(claims.user.getNickName()));
+            out.writeUTF(StrUtil.nullToEmpty(claims.user.getIcon()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Claims decode(byte[] payload){
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            if (in.readByte() != VERSION) {
+                return null;
+            }
+            long tokenId = in.readLong();
+            long expireAt = in.readLong();
+            UserDTO user = new UserDTO();
+            user.setId(in.readLong());
+            user.setNickName(in.readUTF());
+            user.setIcon(in.readUTF());
+            return new Claims(tokenId, user, expireAt);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public static final class Claims {
+        private final long tokenId;
+        private final UserDTO user;
+        private final long expireAt;
+
+        Claims(long tokenId, UserDTO user, long expireAt) {
+            this.tokenId = tokenId;
+            this.user = user;
+            this.expireAt = expireAt;
+        }
+
+        public UserDTO getUser() {
+            return user;
+        }
+    }
+}
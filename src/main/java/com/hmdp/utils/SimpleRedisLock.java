@@ -1,9 +1,7 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.lang.UUID;
-import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 
 import java.util.Collections;
 import java.util.concurrent.TimeUnit;
@@ -12,21 +10,19 @@ public class SimpleRedisLock implements ILock{
 //    由于未来业务有不同种类，所以锁也应该不同，所以就可以给锁加个前缀以区分不同的业务锁
     private String name;
     private StringRedisTemplate stringRedisTemplate;
+    private RedisScriptRegistry redisScriptRegistry;
 
-    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate) {
+    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate, RedisScriptRegistry redisScriptRegistry) {
         this.name = name;
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redisScriptRegistry = redisScriptRegistry;
     }
 
     private static final String KEY_PREFIX = "lock:";
     private static final String ID_PREFIX = UUID.randomUUID().toString(true)+"-";
-//    调用Lua脚本
-    private static final DefaultRedisScript<Long>  UNLOCK_SCRIPT;
-    static {
-        UNLOCK_SCRIPT = new DefaultRedisScript<>();
-        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
-        UNLOCK_SCRIPT.setResultType(Long.class);
-    }
+//    调用Lua脚本，由RedisScriptRegistry预加载
+    private static final String UNLOCK_SCRIPT = "unlock";
+    private static final String RENEW_SCRIPT = "lock_renew";
     @Override
     public boolean tryLock(Long timeoutSec) {
 //        获取线程标识
@@ -39,12 +35,22 @@ public class SimpleRedisLock implements ILock{
         return Boolean.TRUE.equals(success);
     }
     @Override
+    public boolean renew(Long timeoutSec) {
+        Long result = redisScriptRegistry.execute(
+                RENEW_SCRIPT,
+                Collections.singletonList(RedisScriptRegistry.arg(KEY_PREFIX + name)),
+                RedisScriptRegistry.arg(ID_PREFIX + Thread.currentThread().getId()),
+                RedisScriptRegistry.arg(timeoutSec)
+        );
+        return result != null && result == 1L;
+    }
+    @Override
     public void unLock() {
 //        调用Lua脚本
-        stringRedisTemplate.execute(
+        redisScriptRegistry.execute(
                 UNLOCK_SCRIPT,
-                Collections.singletonList(KEY_PREFIX + name),
-                ID_PREFIX + Thread.currentThread().getId()
+                Collections.singletonList(RedisScriptRegistry.arg(KEY_PREFIX + name)),
+                RedisScriptRegistry.arg(ID_PREFIX + Thread.currentThread().getId())
         );
     }
 
@@ -0,0 +1,186 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.RandomUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+import static com.hmdp.utils.RedisConstants.ID_WORKER_TIMESTAMP_KEY;
+
+/**
+ * 本地雪花算法ID生成器，生成id时完全不访问Redis
+ * <p>
+ * id = 41位毫秒时间戳 << 22 | 10位worker id << 12 | 12位毫秒内序列号。
+ * worker id启动时从Redis租用（SET id:worker:{n} owner NX EX），后台定时续约并记录最后使用的时间戳，
+ * 重启后如果发现时钟落后于上次记录的时间戳，会等待时钟追上后再开始发号。
+ * 本地记录租约到期时间，每次续约成功才延长；续约一直失败导致本地租约过期后拒绝发号，
+ * 避免worker id已被其他节点租走时仍用它生成重复的id。
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.id.mode", havingValue = "snowflake")
+public class SnowflakeIdWorker implements IdGenerator {
+//    开始时间戳 2022-01-01 00:00:00 UTC，与RedisIdWorker一致
+    private static final long BEGIN_MILLIS = 1640995200000L;
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+//    运行中允许的最大时钟回拨，回拨范围内继续沿用上次的时间戳发号
+    private static final long MAX_BACKWARD_MILLIS = 5L;
+//    启动时允许等待的最大时钟落后时间
+    private static final long MAX_STARTUP_WAIT_MILLIS = 5000L;
+
+    private static final String RENEW_SCRIPT = "worker_renew";
+//    释放租约与释放分布式锁的逻辑相同：标识一致才删除
+    private static final String RELEASE_SCRIPT = "unlock";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisScriptRegistry redisScriptRegistry;
+//    租约持有者标识
+    private final String owner = UUID.randomUUID().toString(true);
+    private final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "id-worker-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Value("${hmdp.id.worker-lease-seconds:30}")
+    private long leaseSeconds;
+
+    private volatile long workerId = -1;
+//    本地租约到期时间(System.nanoTime)，从发起租用、续约请求之前的时刻算起，比Redis中的过期时间更早
+    private volatile long leaseDeadlineNanos;
+//    高位为上次发号的时间戳，低12位为该毫秒内已用的序列号
+    private final AtomicLong state = new AtomicLong();
+
+    public SnowflakeIdWorker(StringRedisTemplate stringRedisTemplate, RedisScriptRegistry redisScriptRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisScriptRegistry = redisScriptRegistry;
+    }
+
+    @PostConstruct
+    private void init() throws InterruptedException {
+        long leasedAt = System.nanoTime();
+        long id = acquireWorkerId();
+        waitForClock(id);
+        leaseDeadlineNanos = leasedAt + TimeUnit.SECONDS.toNanos(leaseSeconds);
+        workerId = id;
+        long period = Math.max(1, leaseSeconds / 3);
+        heartbeatExecutor.scheduleWithFixedDelay(this::renew, period, period, TimeUnit.SECONDS);
+        log.info("雪花算法worker id租用成功:{}", id);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        heartbeatExecutor.shutdownNow();
+        redisScriptRegistry.execute(RELEASE_SCRIPT, Collections.singletonList(RedisScriptRegistry.arg(ID_WORKER_KEY + workerId)),
+                RedisScriptRegistry.arg(owner));
+    }
+
+    @Override
+    public long nextId(String keyPrefix) {
+        if (System.nanoTime() - leaseDeadlineNanos > 0) {
+            throw new IllegalStateException("worker id " + workerId + "的租约已过期，拒绝生成id");
+        }
+        while (true) {
+            long current = state.get();
+            long lastTimestamp = current >>> SEQUENCE_BITS;
+            long now = System.currentTimeMillis() - BEGIN_MILLIS;
+            long next;
+            if (now > lastTimestamp) {
+//                新的毫秒，序列号从0开始
+                next = now << SEQUENCE_BITS;
+            } else {
+                if (lastTimestamp - now > MAX_BACKWARD_MILLIS) {
+                    throw new IllegalStateException("时钟回拨" + (lastTimestamp - now) + "ms，拒绝生成id");
+                }
+//                同一毫秒或小幅回拨，沿用上次的时间戳，序列号+1
+                long sequence = (current & SEQUENCE_MASK) + 1;
+                if (sequence > SEQUENCE_MASK) {
+//                    当前毫秒的序列号已用完，等待下一毫秒
+                    Thread.yield();
+                    continue;
+                }
+                next = (lastTimestamp << SEQUENCE_BITS) | sequence;
+            }
+            if (state.compareAndSet(current, next)) {
+                return (next >>> SEQUENCE_BITS) << (WORKER_BITS + SEQUENCE_BITS)
+                        | workerId << SEQUENCE_BITS
+                        | (next & SEQUENCE_MASK);
+            }
+        }
+    }
+
+//    从随机位置开始依次尝试 SET id:worker:{n} owner NX EX leaseSeconds，避免多个节点同时抢同一个id
+    private long acquireWorkerId() {
+        long start = RandomUtil.randomLong(MAX_WORKER_ID + 1);
+        for (long i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (start + i) & MAX_WORKER_ID;
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + id, owner, leaseSeconds, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                return id;
+            }
+        }
+        throw new IllegalStateException("没有可用的worker id");
+    }
+
+//    上一个持有该worker id的进程记录了最后的时间戳，时钟必须超过它才能继续发号
+    private void waitForClock(long id) throws InterruptedException {
+        String last = stringRedisTemplate.opsForValue().get(ID_WORKER_TIMESTAMP_KEY + id);
+        if (last == null) {
+            return;
+        }
+        long lastMillis = Long.parseLong(last);
+        long behind = lastMillis - System.currentTimeMillis();
+        if (behind > MAX_STARTUP_WAIT_MILLIS) {
+            throw new IllegalStateException("时钟落后上次记录的时间戳" + behind + "ms，worker id:" + id);
+        }
+        if (behind >= 0) {
+            Thread.sleep(behind + 1);
+        }
+    }
+
+//    续约租约并记录当前时间戳；租约丢失时重新租用一个worker id，旧id不再使用
+    private void renew() {
+        try {
+            long id = workerId;
+            long renewedAt = System.nanoTime();
+            Long result = redisScriptRegistry.execute(
+                    RENEW_SCRIPT,
+                    Arrays.asList(RedisScriptRegistry.arg(ID_WORKER_KEY + id), RedisScriptRegistry.arg(ID_WORKER_TIMESTAMP_KEY + id)),
+                    RedisScriptRegistry.arg(owner), RedisScriptRegistry.arg(leaseSeconds), RedisScriptRegistry.arg(System.currentTimeMillis())
+            );
+            if (result != null && result == 1L) {
+                leaseDeadlineNanos = renewedAt + TimeUnit.SECONDS.toNanos(leaseSeconds);
+                return;
+            }
+            log.error("worker id {}的租约已丢失，重新租用", id);
+//            先让本地租约立即过期，重新租用成功之前不再用旧id发号
+            leaseDeadlineNanos = renewedAt;
+            long leasedAt = System.nanoTime();
+            long newId = acquireWorkerId();
+            waitForClock(newId);
+            workerId = newId;
+            leaseDeadlineNanos = leasedAt + TimeUnit.SECONDS.toNanos(leaseSeconds);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("续约worker id失败", e);
+        }
+    }
+}
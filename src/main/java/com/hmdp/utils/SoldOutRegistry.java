@@ -0,0 +1,80 @@
+package com.hmdp.utils;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 本节点已售罄的秒杀券
+ * <p>
+ * 优惠券id是自增的，小于 BITMAP_CAPACITY 的id用位图保存，判断只需要一次数组读取；更大的id放在Set中。
+ * 每次clear都会增加epoch。扣库存之前先读取epoch，拿到"库存不足"后按这个epoch标记，
+ * 期间发生过补货（clear）时不再标记，避免补货之前发出的请求把刚补货的券又标记为售罄。
+ */
+public class SoldOutRegistry {
+    private static final int BITMAP_CAPACITY = 1 << 20;
+
+    private final AtomicLongArray bits = new AtomicLongArray(BITMAP_CAPACITY >>> 6);
+    private final Set<Long> overflow = ConcurrentHashMap.newKeySet();
+    private final AtomicLong epoch = new AtomicLong();
+//    每张券最后一次clear的时间
+    private final Map<Long, Long> clearedAt = new ConcurrentHashMap<>();
+
+    public boolean isSoldOut(long voucherId) {
+        if (voucherId >= 0 && voucherId < BITMAP_CAPACITY) {
+            return (bits.get((int) (voucherId >>> 6)) & (1L << voucherId)) != 0;
+        }
+        return overflow.contains(voucherId);
+    }
+
+    /**
+     * @return 之前未标记、本次新标记时返回true
+     */
+    public boolean markSoldOut(long voucherId) {
+        if (voucherId >= 0 && voucherId < BITMAP_CAPACITY) {
+            long mask = 1L << voucherId;
+            long previous = bits.getAndAccumulate((int) (voucherId >>> 6), mask, (a, b) -> a | b);
+            return (previous & mask) == 0;
+        }
+        return overflow.add(voucherId);
+    }
+
+    /**
+     * 当前epoch，发起扣库存之前读取，传给 markSoldOut(voucherId, epoch)
+     */
+    public long epoch() {
+        return epoch.get();
+    }
+
+    /**
+     * 只有epoch没有变化（期间没有clear）时才标记
+     * @return 本次新标记时返回true
+     */
+    public synchronized boolean markSoldOut(long voucherId, long expectedEpoch) {
+        if (epoch.get() != expectedEpoch) {
+            return false;
+        }
+        return markSoldOut(voucherId);
+    }
+
+    /**
+     * 最近millis毫秒内是否clear过，用于忽略其他节点在补货之前发出的售罄通知
+     */
+    public boolean clearedWithin(long voucherId, long millis) {
+        Long time = clearedAt.get(voucherId);
+        return time != null && System.currentTimeMillis() - time < millis;
+    }
+
+    public synchronized void clear(long voucherId) {
+        epoch.incrementAndGet();
+        clearedAt.put(voucherId, System.currentTimeMillis());
+        if (voucherId >= 0 && voucherId < BITMAP_CAPACITY) {
+            long mask = ~(1L << voucherId);
+            bits.accumulateAndGet((int) (voucherId >>> 6), mask, (a, b) -> a & b);
+            return;
+        }
+        overflow.remove(voucherId);
+    }
+}
@@ -0,0 +1,138 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_REVOKED_KEY;
+import static com.hmdp.utils.RedisConstants.LOGIN_REVOKE_CHANNEL;
+
+/**
+ * 已注销的签名token
+ * <p>
+ * Redis中用ZSET login:revoked 保存token id，score为token最晚的过期时间，过期后清理。
+ * 每个节点在本地保存一个布隆过滤器，绝大多数请求只查本地；布隆过滤器命中时再到Redis确认。
+ * 新注销的token通过发布订阅立即加入所有节点的布隆过滤器，另外定时从Redis全量重建，清除已过期的id。
+ * 先订阅再读取Redis中的快照；重建期间收到的注销先暂存，新过滤器替换旧过滤器之前补进去，不会丢失。
+ */
+@Slf4j
+@Component
+public class TokenRevocationList {
+    private final StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.login.revocation.expected-size:100000}")
+    private long expectedSize;
+    @Value("${hmdp.login.revocation.rebuild-interval-seconds:300}")
+    private long rebuildIntervalSeconds;
+
+    private volatile BloomFilter bloomFilter;
+//    重建期间收到的注销，为null表示没有在重建
+    private List<Long> pendingRevocations;
+    private final Object filterLock = new Object();
+    private final ScheduledExecutorService rebuildExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "token-revocation-rebuild");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public TokenRevocationList(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void init(){
+        redisMessageListenerContainer.addMessageListener(this::onRevoke, new ChannelTopic(LOGIN_REVOKE_CHANNEL));
+        rebuild();
+        rebuildExecutor.scheduleWithFixedDelay(this::rebuild, rebuildIntervalSeconds, rebuildIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        rebuildExecutor.shutdownNow();
+    }
+
+    /**
+     * @param expireAt token最晚的过期时间（毫秒时间戳），在此之后记录会被清理
+     */
+    public void revoke(long tokenId, long expireAt){
+        stringRedisTemplate.opsForZSet().add(LOGIN_REVOKED_KEY, String.valueOf(tokenId), expireAt);
+        addLocal(tokenId);
+        stringRedisTemplate.convertAndSend(LOGIN_REVOKE_CHANNEL, String.valueOf(tokenId));
+    }
+
+    public boolean isRevoked(long tokenId){
+        if (!bloomFilter.mightContain(tokenId)) {
+            return false;
+        }
+//        布隆过滤器可能误判，到Redis确认
+        return stringRedisTemplate.opsForZSet().score(LOGIN_REVOKED_KEY, String.valueOf(tokenId)) != null;
+    }
+
+//    清理已过期的记录，再用剩下的id重建布隆过滤器
+    private void rebuild(){
+        synchronized (filterLock) {
+            pendingRevocations = new ArrayList<>();
+        }
+        try {
+            long now = System.currentTimeMillis();
+            stringRedisTemplate.opsForZSet().removeRangeByScore(LOGIN_REVOKED_KEY, 0, now);
+            Set<String> tokenIds = stringRedisTemplate.opsForZSet().rangeByScore(LOGIN_REVOKED_KEY, now, Double.MAX_VALUE);
+            int size = tokenIds == null ? 0 : tokenIds.size();
+            BloomFilter filter = new BloomFilter(Math.max(expectedSize, size * 2L), 0.001, null, stringRedisTemplate);
+            if (tokenIds != null) {
+                for (String tokenId : tokenIds) {
+                    filter.put(Long.parseLong(tokenId));
+                }
+            }
+//            读取快照之后才到达的注销补进新过滤器，再替换
+            synchronized (filterLock) {
+                for (Long tokenId : pendingRevocations) {
+                    filter.put(tokenId);
+                }
+                bloomFilter = filter;
+                pendingRevocations = null;
+            }
+        } catch (Exception e) {
+            synchronized (filterLock) {
+                pendingRevocations = null;
+            }
+            if (bloomFilter == null) {
+                throw e;
+            }
+            log.error("重建token注销列表失败", e);
+        }
+    }
+
+    private void onRevoke(Message message, byte[] pattern){
+        addLocal(Long.parseLong(new String(message.getBody(), StandardCharsets.UTF_8)));
+    }
+
+//    写入当前过滤器，正在重建时同时暂存，启动时第一个过滤器建好之前只暂存
+    private void addLocal(long tokenId){
+        synchronized (filterLock) {
+            if (bloomFilter != null) {
+                bloomFilter.put(tokenId);
+            }
+            if (pendingRevocations != null) {
+                pendingRevocations.add(tokenId);
+            }
+        }
+    }
+}
@@ -0,0 +1,11 @@
+-- ----------------------------
+-- 为已有库的 tb_follow 补充唯一索引 uk_user_follow
+-- 关注接口依赖该索引保证重复请求只插入一次，粉丝数、关注数的对账按 tb_follow 的记录数计算
+-- 先删除重复的关注记录，每对(user_id, follow_user_id)保留id最小的一条
+-- ----------------------------
+DELETE f FROM `tb_follow` f
+  JOIN `tb_follow` k ON k.`user_id` = f.`user_id` AND k.`follow_user_id` = f.`follow_user_id` AND k.`id` < f.`id`;
+
+ALTER TABLE `tb_follow`
+  ADD UNIQUE INDEX `uk_user_follow`(`user_id`, `follow_user_id`) USING BTREE,
+  ADD INDEX `idx_follow_user_id`(`follow_user_id`) USING BTREE;
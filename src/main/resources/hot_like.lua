@@ -0,0 +1,26 @@
+--- 热门博客排行：分数为按时间衰减的点赞数，每个点赞的权重为 2^((点赞时间 - 基准时间) / 半衰期)
+--- 新点赞的权重随时间指数增长，相当于旧点赞按半衰期衰减，只需要ZINCRBY，不需要定时重算所有分数
+--- 分数增长过大时整体乘以衰减系数并移动基准时间，避免浮点数溢出
+--- KEYS[1] 排行ZSET，KEYS[2] 基准时间key
+--- ARGV[1] 博客id，ARGV[2] 1点赞/-1取消点赞，ARGV[3] 点赞时间，ARGV[4] 当前时间，ARGV[5] 半衰期（毫秒）
+local now = tonumber(ARGV[4])
+local halfLife = tonumber(ARGV[5])
+local epoch = tonumber(redis.call('get', KEYS[2]))
+if (epoch == nil) then
+    epoch = now
+    redis.call('set', KEYS[2], epoch)
+end
+-- 超过32个半衰期时移动基准时间，所有分数乘以 2^(-经过的半衰期数)
+if ((now - epoch) / halfLife > 32) then
+    local factor = 2 ^ (-(now - epoch) / halfLife)
+    redis.call('zunionstore', KEYS[1], 1, KEYS[1], 'WEIGHTS', string.format('%.17g', factor))
+    epoch = now
+    redis.call('set', KEYS[2], epoch)
+end
+local weight = 2 ^ ((tonumber(ARGV[3]) - epoch) / halfLife)
+local score = redis.call('zincrby', KEYS[1], string.format('%.17g', tonumber(ARGV[2]) * weight), ARGV[1])
+-- 浮点误差可能让取消点赞后的分数略小于0
+if (tonumber(score) < 0) then
+    redis.call('zadd', KEYS[1], 0, ARGV[1])
+end
+return 0
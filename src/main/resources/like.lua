@@ -0,0 +1,18 @@
+--- 点赞/取消点赞：点赞用户保存在ZSET中，score为点赞时间，可以按时间查询最早点赞的用户
+--- KEYS[1] blog:liked:{blogId}；ARGV[1] 用户id，ARGV[2] 当前时间戳
+--- 返回1：本次为点赞；小于等于0：本次为取消点赞，值为原来点赞时间的相反数（旧SET转换来的点赞时间未知，返回0）
+-- 兼容原来用SET保存的点赞用户，第一次点赞时转换为ZSET，原有的点赞时间未知，记为0
+if (redis.call('type', KEYS[1]).ok == 'set') then
+    local members = redis.call('smembers', KEYS[1])
+    redis.call('del', KEYS[1])
+    for i = 1, #members do
+        redis.call('zadd', KEYS[1], 0, members[i])
+    end
+end
+local likeTime = redis.call('zscore', KEYS[1], ARGV[1])
+if (likeTime) then
+    redis.call('zrem', KEYS[1], ARGV[1])
+    return -tonumber(likeTime)
+end
+redis.call('zadd', KEYS[1], ARGV[2], ARGV[1])
+return 1
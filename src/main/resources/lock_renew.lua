@@ -0,0 +1,6 @@
+--- 续期分布式锁，只有锁中的标识与当前线程一致时才延长过期时间
+--- KEYS[1] 锁的key；ARGV[1] 线程标识，ARGV[2] 过期秒数
+if (redis.call('get', KEYS[1]) == ARGV[1]) then
+    return redis.call('expire', KEYS[1], ARGV[2])
+end
+return 0
\ No newline at end of file
@@ -10,12 +10,14 @@ local voucherId = ARGV[1]
 local userId = ARGV[2]
 -- 1.3 订单id
 local orderId = ARGV[3]
+-- 1.4 订单状态的过期时间（秒）
+local statusTtl = ARGV[4]
 
 -- 2. 数据key
 -- 2.1 库存key
 local stockKey = 'seckill:stock:'..voucherId
 -- 2.2 订单key
-local stockKey = 'seckill:order:'..voucherId
+local orderKey = 'seckill:order:'..voucherId
 
 -- 3. 脚本业务
 -- 3.1 判断库存是否充足 get stockKey
@@ -29,9 +31,13 @@ if (redis.call('sismember', orderKey, userId) == 1) then
     return 2
 end
 -- 3.4 扣库存 incrby stockKey -1
-redis.call('incyby',stockKey,-1)
+redis.call('incrby',stockKey,-1)
 -- 3.5 下单(保存用户) sadd orderKey userId
-redis.call('sadd',stockKey,userId)
--- 3.6 发送消息到消息队列中XADD stream.orders * k1 v1 k2 v2
-redis.call('xadd','stream.orders','*','userId',userId,'voucherId',voucherId,'id',orderId)
+redis.call('sadd',orderKey,userId)
+-- 3.6 发送消息到消息队列中XADD streams.order * k1 v1 k2 v2
+redis.call('xadd','streams.order','*','userId',userId,'voucherId',voucherId,'id',orderId)
+-- 3.7 记录订单状态，客户端轮询状态而不是重复调用秒杀接口
+local statusKey = 'order:status:'..orderId
+redis.call('hset',statusKey,'status','QUEUED','userId',userId,'voucherId',voucherId)
+redis.call('expire',statusKey,statusTtl)
 return 0
\ No newline at end of file
@@ -0,0 +1,13 @@
+--- 分桶秒杀：在用户的主桶中校验一人一单并扣减库存
+--- KEYS[1] 主桶库存key，KEYS[2] 主桶下单用户key；ARGV[1] 用户id
+--- 返回0：主桶扣减成功；2：重复下单；3：主桶库存不足，用户已占位，需要到其他桶扣减，失败时调用seckill_release.lua
+if (redis.call('sismember', KEYS[2], ARGV[1]) == 1) then
+    return 2
+end
+redis.call('sadd', KEYS[2], ARGV[1])
+local stock = tonumber(redis.call('get', KEYS[1]))
+if (stock ~= nil and stock > 0) then
+    redis.call('incrby', KEYS[1], -1)
+    return 0
+end
+return 3
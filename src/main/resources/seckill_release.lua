@@ -0,0 +1,3 @@
+--- 分桶秒杀：所有桶都没有库存时，释放用户在主桶中的占位
+--- KEYS[1] 主桶下单用户key；ARGV[1] 用户id
+return redis.call('srem', KEYS[1], ARGV[1])
@@ -0,0 +1,9 @@
+--- 分桶秒杀：主桶库存不足时从其他桶扣减一件库存
+--- KEYS[1] 桶的库存key
+--- 返回0：扣减成功；1：该桶库存不足
+local stock = tonumber(redis.call('get', KEYS[1]))
+if (stock == nil or stock <= 0) then
+    return 1
+end
+redis.call('incrby', KEYS[1], -1)
+return 0
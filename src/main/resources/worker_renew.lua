@@ -0,0 +1,8 @@
+--- 续约worker id租约，只有租约持有者才能续约
+--- KEYS[1] 租约key，KEYS[2] 最后时间戳key；ARGV[1] 持有者标识，ARGV[2] 租约秒数，ARGV[3] 当前时间戳
+if (redis.call('get', KEYS[1]) == ARGV[1]) then
+    redis.call('expire', KEYS[1], ARGV[2])
+    redis.call('set', KEYS[2], ARGV[3])
+    return 1
+end
+return 0
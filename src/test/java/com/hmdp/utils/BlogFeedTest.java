@@ -0,0 +1,208 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.ScrollResult;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.ZSetOperations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BlogFeedTest {
+    private static final long FIRST_MAX = 1_000_000L;
+//    与ZREVRANGEBYSCORE一致：分数倒序，分数相同时成员倒序
+    private static final Comparator<ZSetOperations.TypedTuple<String>> ORDER =
+            Comparator.<ZSetOperations.TypedTuple<String>>comparingDouble(ZSetOperations.TypedTuple::getScore).reversed()
+                    .thenComparing(ZSetOperations.TypedTuple::getValue, Comparator.reverseOrder());
+
+    @Test
+    void mergeOrdersEqualTimestampsAcrossSourcesByMember() {
+        List<List<ZSetOperations.TypedTuple<String>>> sources = Arrays.asList(
+                source(tuple("101", 100), tuple("103", 100), tuple("105", 90)),
+                source(tuple("102", 100), tuple("104", 100)));
+
+        ScrollResult result = BlogFeed.merge(fetch(sources, FIRST_MAX, 0, 10), FIRST_MAX, 0, 10);
+
+        assertThat(ids(result)).containsExactly(104L, 103L, 102L, 101L, 105L);
+        assertThat(result.getMinTime()).isEqualTo(90L);
+        assertThat(result.getOffset()).isEqualTo(1);
+    }
+
+    @Test
+    void pageEndingOnSharedTimestampCountsItForTheNextPage() {
+        List<List<ZSetOperations.TypedTuple<String>>> sources = Arrays.asList(
+                source(tuple("110", 200), tuple("103", 100), tuple("101", 100)),
+                source(tuple("104", 100), tuple("102", 100)));
+
+        ScrollResult first = BlogFeed.merge(fetch(sources, FIRST_MAX, 0, 3), FIRST_MAX, 0, 3);
+        assertThat(ids(first)).containsExactly(110L, 104L, 103L);
+        assertThat(first.getMinTime()).isEqualTo(100L);
+        assertThat(first.getOffset()).isEqualTo(2);
+
+        ScrollResult second = BlogFeed.merge(fetch(sources, 100, 2, 3), 100, 2, 3);
+        assertThat(ids(second)).containsExactly(102L, 101L);
+    }
+
+    @Test
+    void pagesEntirelyAtMaxAccumulateOffset() {
+        List<List<ZSetOperations.TypedTuple<String>>> sources = new ArrayList<>();
+        for (int s = 0; s < 3; s++) {
+            List<ZSetOperations.TypedTuple<String>> source = new ArrayList<>();
+            for (int i = s; i < 25; i += 3) {
+                source.add(tuple(String.valueOf(100 + i), 500));
+            }
+            source.sort(ORDER);
+            sources.add(source);
+        }
+
+        ScrollResult first = BlogFeed.merge(fetch(sources, FIRST_MAX, 0, 10), FIRST_MAX, 0, 10);
+        assertThat(first.getMinTime()).isEqualTo(500L);
+        assertThat(first.getOffset()).isEqualTo(10);
+
+//        第二页整页的时间都等于max，游标要加上第一页已经返回的条数
+        ScrollResult second = BlogFeed.merge(fetch(sources, 500, 10, 10), 500, 10, 10);
+        assertThat(ids(second)).hasSize(10);
+        assertThat(second.getMinTime()).isEqualTo(500L);
+        assertThat(second.getOffset()).isEqualTo(20);
+
+        ScrollResult third = BlogFeed.merge(fetch(sources, 500, 20, 10), 500, 20, 10);
+        assertThat(ids(third)).containsExactly(104L, 103L, 102L, 101L, 100L);
+        assertThat(third.getOffset()).isEqualTo(25);
+
+        ScrollResult end = BlogFeed.merge(fetch(sources, 500, 25, 10), 500, 25, 10);
+        assertThat(ids(end)).isEmpty();
+        assertThat(end.getMinTime()).isEqualTo(500L);
+        assertThat(end.getOffset()).isEqualTo(25);
+    }
+
+    @Test
+    void mergeReturnsBlogInSeveralSourcesOnce() {
+//        成为大V之前推送到收件箱、之后又写入发件箱的同一篇博客
+        List<List<ZSetOperations.TypedTuple<String>>> sources = Arrays.asList(
+                source(tuple("103", 300), tuple("102", 200), tuple("101", 100)),
+                source(tuple("103", 300), tuple("102", 200)),
+                source(tuple("102", 200)));
+
+        ScrollResult result = BlogFeed.merge(fetch(sources, FIRST_MAX, 0, 10), FIRST_MAX, 0, 10);
+
+        assertThat(ids(result)).containsExactly(103L, 102L, 101L);
+    }
+
+    @Test
+    void duplicatesAtPageBoundaryAreNotSkippedTwice() {
+        List<List<ZSetOperations.TypedTuple<String>>> sources = Arrays.asList(
+                source(tuple("104", 100), tuple("103", 100), tuple("102", 100)),
+                source(tuple("104", 100), tuple("103", 100), tuple("101", 100)));
+
+        assertThat(scroll(sources, 2)).containsExactly(104L, 103L, 102L, 101L);
+    }
+
+    @Test
+    void emptySourcesKeepCursor() {
+        ScrollResult result = BlogFeed.merge(Collections.emptyList(), 500, 3, 10);
+
+        assertThat(ids(result)).isEmpty();
+        assertThat(result.getMinTime()).isEqualTo(500L);
+        assertThat(result.getOffset()).isEqualTo(3);
+    }
+
+    @Test
+    void scrollingReturnsEveryBlogOnceInOrder() {
+        Random random = new Random(7);
+        for (int trial = 0; trial < 500; trial++) {
+//            时间只取几个值，制造大量同分数；同一篇博客在每一路中的时间相同
+            Map<String, Long> times = new HashMap<>();
+            List<List<ZSetOperations.TypedTuple<String>>> sources = new ArrayList<>();
+            int sourceCount = 1 + random.nextInt(4);
+            for (int s = 0; s < sourceCount; s++) {
+                Set<String> members = new LinkedHashSet<>();
+                int count = random.nextInt(30);
+                for (int i = 0; i < count; i++) {
+                    members.add(String.valueOf(100 + random.nextInt(60)));
+                }
+                List<ZSetOperations.TypedTuple<String>> source = new ArrayList<>();
+                for (String member : members) {
+                    long time = times.computeIfAbsent(member, m -> 1L + random.nextInt(4));
+                    source.add(tuple(member, time));
+                }
+                source.sort(ORDER);
+                sources.add(source);
+            }
+            List<ZSetOperations.TypedTuple<String>> expected = new ArrayList<>();
+            times.forEach((member, time) -> expected.add(tuple(member, time)));
+            expected.sort(ORDER);
+            List<Long> expectedIds = new ArrayList<>();
+            for (ZSetOperations.TypedTuple<String> tuple : expected) {
+                expectedIds.add(Long.valueOf(tuple.getValue()));
+            }
+
+            assertThat(scroll(sources, 1 + random.nextInt(6))).containsExactlyElementsOf(expectedIds);
+        }
+    }
+
+//    按游标一直翻页到返回空页，每页像readMerged一样从每一路读取 offset+size 条
+    private static List<Long> scroll(List<List<ZSetOperations.TypedTuple<String>>> sources, int size) {
+        List<Long> ids = new ArrayList<>();
+        long max = FIRST_MAX;
+        int offset = 0;
+        for (int page = 0; page < 1000; page++) {
+            ScrollResult result = BlogFeed.merge(fetch(sources, max, offset, size), max, offset, size);
+            if (result.getList().isEmpty()) {
+                return ids;
+            }
+            ids.addAll(ids(result));
+            max = result.getMinTime();
+            offset = result.getOffset();
+        }
+        throw new AssertionError("翻页没有结束");
+    }
+
+    private static List<Long> ids(ScrollResult result) {
+        List<Long> ids = new ArrayList<>();
+        for (Object id : result.getList()) {
+            ids.add((Long) id);
+        }
+        return ids;
+    }
+
+//    模拟 ZREVRANGEBYSCORE key max 0 WITHSCORES LIMIT 0 offset+size
+    private static List<Set<ZSetOperations.TypedTuple<String>>> fetch(
+            List<List<ZSetOperations.TypedTuple<String>>> sources, long max, int offset, int size) {
+        List<Set<ZSetOperations.TypedTuple<String>>> results = new ArrayList<>();
+        for (List<ZSetOperations.TypedTuple<String>> source : sources) {
+            Set<ZSetOperations.TypedTuple<String>> result = new LinkedHashSet<>();
+            for (ZSetOperations.TypedTuple<String> tuple : source) {
+                if (result.size() >= offset + size) {
+                    break;
+                }
+                if (tuple.getScore() <= max) {
+                    result.add(tuple);
+                }
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+//    按ZREVRANGEBYSCORE的返回顺序排列一路数据
+    @SafeVarargs
+    private static List<ZSetOperations.TypedTuple<String>> source(ZSetOperations.TypedTuple<String>... tuples) {
+        List<ZSetOperations.TypedTuple<String>> source = new ArrayList<>(Arrays.asList(tuples));
+        source.sort(ORDER);
+        return source;
+    }
+
+    private static ZSetOperations.TypedTuple<String> tuple(String member, long time) {
+        return new DefaultTypedTuple<>(member, (double) time);
+    }
+}
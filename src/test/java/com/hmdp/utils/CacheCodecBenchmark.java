@@ -0,0 +1,110 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheCodecConfig;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存值编解码：json与binary两种格式的编码、解码耗时和编码后的字节数对比
+ * <p>
+ * 店铺和博客使用接近线上的字段内容，解码分为普通缓存和逻辑过期缓存两种。
+ * 编码后的字节数在每组参数开始时打印。不需要Redis，运行：执行main方法，或 mvn test-compile 后用JMH命令行运行本类。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheCodecBenchmark {
+    private static final long EXPIRE_AT = 1893456000000L;
+
+    @Param({"json", "binary"})
+    public String codec;
+    @Param({"shop", "blog"})
+    public String type;
+
+    private CacheCodec cacheCodec;
+    private Object value;
+    private Class<?> valueType;
+    private byte[] plain;
+    private byte[] logical;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        cacheCodec = new CacheCodecConfig().cacheCodec(codec);
+        if ("shop".equals(type)) {
+            value = shop();
+            valueType = Shop.class;
+        } else {
+            value = blog();
+            valueType = Blog.class;
+        }
+        plain = cacheCodec.encode(value, 0);
+        logical = cacheCodec.encode(value, EXPIRE_AT);
+        System.out.println("\n" + codec + " " + type + " 编码后字节数：普通 " + plain.length + "，逻辑过期 " + logical.length);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return cacheCodec.encode(value, 0);
+    }
+
+    @Benchmark
+    public byte[] encodeWithExpire() {
+        return cacheCodec.encode(value, EXPIRE_AT);
+    }
+
+    @Benchmark
+    public Object decode() {
+        return cacheCodec.decode(plain, valueType);
+    }
+
+    @Benchmark
+    public CacheCodec.Decoded<?> decodeWithExpire() {
+        return cacheCodec.decodeWithExpire(logical, valueType);
+    }
+
+    private static Shop shop() {
+        return new Shop().setId(1L).setName("103茶餐厅").setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关").setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192).setY(30.316078).setAvgPrice(80L).setSold(4215).setComments(3035).setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39)).setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+    }
+
+    private static Blog blog() {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            content.append("生活就是一半烟火，一半诗意。手执烟火谋生活，心怀诗意以谋爱。");
+        }
+        return new Blog().setId(4L).setShopId(4L).setUserId(2L)
+                .setTitle("无尽浪漫的夜晚丨在万花丛中摇晃着红酒杯🍷品战斧牛排🥩")
+                .setImages("/imgs/blogs/7/14/4771fefb-1a87-4252-816c-9f7ec41ffa4a.jpg,/imgs/blogs/4/10/2f07e3c9-ddce-482d-9ea7-c21450f8d7cd.jpg")
+                .setContent(content.toString()).setLiked(1024).setComments(104)
+                .setCreateTime(LocalDateTime.of(2021, 12, 28, 19, 50, 1)).setUpdateTime(LocalDateTime.of(2022, 3, 10, 14, 26, 34));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(CacheCodecBenchmark.class.getSimpleName()).build()).run();
+    }
+}
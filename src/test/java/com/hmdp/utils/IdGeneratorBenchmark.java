@@ -0,0 +1,99 @@
+package com.hmdp.utils;
+
+import io.lettuce.core.resource.ClientResources;
+import io.lettuce.core.resource.DefaultClientResources;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceClientConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 全局ID生成：Redis号段模式与本地雪花算法模式的吞吐量对比
+ * <p>
+ * 两种模式都需要本地Redis（号段模式租用序列号，雪花算法模式租用worker id），
+ * 通过 -Dbench.redis.host / -Dbench.redis.port / -Dbench.redis.database 指定，序列号写入 icr:{BENCH_KEY_PREFIX}:*。
+ * main方法依次用1、4、16、64个线程运行；用JMH命令行运行时通过 -t 指定线程数。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IdGeneratorBenchmark {
+    private static final String BENCH_KEY_PREFIX = "bench";
+    private static final int[] THREADS = {1, 4, 16, 64};
+
+    @Param({"redis", "snowflake"})
+    public String mode;
+
+    private IdGenerator idGenerator;
+    private ClientResources clientResources;
+    private LettuceConnectionFactory connectionFactory;
+    private RedisScriptRegistry redisScriptRegistry;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        clientResources = DefaultClientResources.create();
+        RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration(
+                System.getProperty("bench.redis.host", "127.0.0.1"), Integer.getInteger("bench.redis.port", 6379));
+        configuration.setDatabase(Integer.getInteger("bench.redis.database", 0));
+        connectionFactory = new LettuceConnectionFactory(configuration,
+                LettuceClientConfiguration.builder().clientResources(clientResources).build());
+        connectionFactory.afterPropertiesSet();
+        StringRedisTemplate stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        if ("snowflake".equals(mode)) {
+            redisScriptRegistry = new RedisScriptRegistry(stringRedisTemplate, clientResources);
+            ReflectionTestUtils.invokeMethod(redisScriptRegistry, "init");
+            SnowflakeIdWorker worker = new SnowflakeIdWorker(stringRedisTemplate, redisScriptRegistry);
+            ReflectionTestUtils.setField(worker, "leaseSeconds", 30L);
+            ReflectionTestUtils.invokeMethod(worker, "init");
+            idGenerator = worker;
+        } else {
+            idGenerator = new RedisIdWorker(stringRedisTemplate);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+//        释放worker id租约，并停止脚本注册表的后台线程
+        if (idGenerator instanceof SnowflakeIdWorker) {
+            ReflectionTestUtils.invokeMethod(idGenerator, "destroy");
+        }
+        if (redisScriptRegistry != null) {
+            ReflectionTestUtils.invokeMethod(redisScriptRegistry, "destroy");
+        }
+        connectionFactory.destroy();
+        clientResources.shutdown();
+    }
+
+    @Benchmark
+    public long nextId() {
+        return idGenerator.nextId(BENCH_KEY_PREFIX);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : THREADS) {
+            new Runner(new OptionsBuilder().include(IdGeneratorBenchmark.class.getSimpleName()).threads(threads).build()).run();
+        }
+    }
+}
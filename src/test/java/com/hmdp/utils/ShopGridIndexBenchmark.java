@@ -0,0 +1,120 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
+import static org.mockito.Mockito.mock;
+
+/**
+ * 附近店铺查询：进程内网格索引与Redis GEOSEARCH的对比
+ * <p>
+ * 店铺均匀分布在约55km x 55km的区域内，每次查询随机取一个中心点，半径5km取前10个。
+ * GEOSEARCH需要本地Redis，通过 -Dbench.redis.host / -Dbench.redis.port / -Dbench.redis.database 指定，
+ * 数据写入 shop:geo:{BENCH_TYPE_ID}，结束后删除。运行：执行main方法，或 mvn test-compile 后用JMH命令行运行本类。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShopGridIndexBenchmark {
+    private static final long BENCH_TYPE_ID = 9001L;
+    private static final double MIN_X = 120.0;
+    private static final double MIN_Y = 30.0;
+    private static final double SPAN_DEGREES = 0.5;
+    private static final double RADIUS_METERS = 5000;
+    private static final int PAGE_SIZE = 10;
+    private static final int GEOADD_BATCH_SIZE = 10000;
+
+    @Param({"10000", "100000", "1000000"})
+    public int shops;
+
+    private ShopGridIndex gridIndex;
+    private ShopGeoIndex geoIndex;
+    private LettuceConnectionFactory connectionFactory;
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        List<Shop> data = new ArrayList<>(shops);
+        for (long id = 1; id <= shops; id++) {
+            data.add(ShopGridIndexTest.shop(id, BENCH_TYPE_ID, MIN_X + random.nextDouble() * SPAN_DEGREES,
+                    MIN_Y + random.nextDouble() * SPAN_DEGREES, random.nextInt(50)));
+        }
+        gridIndex = ShopGridIndexTest.newIndex(mock(ShopMapper.class), data, 1000);
+
+        RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration(
+                System.getProperty("bench.redis.host", "127.0.0.1"), Integer.getInteger("bench.redis.port", 6379));
+        configuration.setDatabase(Integer.getInteger("bench.redis.database", 0));
+        connectionFactory = new LettuceConnectionFactory(configuration);
+        connectionFactory.afterPropertiesSet();
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        String key = SHOP_GEO_KEY + BENCH_TYPE_ID;
+        stringRedisTemplate.delete(key);
+        for (int i = 0; i < data.size(); i += GEOADD_BATCH_SIZE) {
+            List<RedisGeoCommands.GeoLocation<String>> locations = new ArrayList<>(GEOADD_BATCH_SIZE);
+            for (Shop shop : data.subList(i, Math.min(data.size(), i + GEOADD_BATCH_SIZE))) {
+                locations.add(new RedisGeoCommands.GeoLocation<>(shop.getId().toString(), new Point(shop.getX(), shop.getY())));
+            }
+            stringRedisTemplate.opsForGeo().add(key, locations);
+        }
+        geoIndex = new ShopGeoIndex();
+        ReflectionTestUtils.setField(geoIndex, "stringRedisTemplate", stringRedisTemplate);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        stringRedisTemplate.delete(SHOP_GEO_KEY + BENCH_TYPE_ID);
+        connectionFactory.destroy();
+    }
+
+    @Benchmark
+    public Map<Long, Double> grid() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return gridIndex.search(BENCH_TYPE_ID, MIN_X + random.nextDouble() * SPAN_DEGREES,
+                MIN_Y + random.nextDouble() * SPAN_DEGREES, RADIUS_METERS, 0, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public Map<Long, Double> geoSearch() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return geoIndex.search(BENCH_TYPE_ID, MIN_X + random.nextDouble() * SPAN_DEGREES,
+                MIN_Y + random.nextDouble() * SPAN_DEGREES, RADIUS_METERS, 0, PAGE_SIZE);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ShopGridIndexBenchmark.class.getSimpleName()).build()).run();
+    }
+}
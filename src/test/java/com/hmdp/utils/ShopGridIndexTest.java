@@ -0,0 +1,241 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ShopGridIndexTest {
+    private static final double EARTH_RADIUS_METERS = 6372797.560856;
+
+    private ShopMapper shopMapper;
+    private ShopGridIndex index;
+
+    @BeforeEach
+    void setUp() {
+        shopMapper = mock(ShopMapper.class);
+    }
+
+    @Test
+    void searchReturnsShopsInRadiusOrderedByDistance() {
+        index = newIndex(shopMapper, Arrays.asList(
+                shop(1L, 1L, 120.000, 30.000, 40),
+                shop(2L, 1L, 120.010, 30.000, 40),
+                shop(3L, 1L, 120.020, 30.000, 40),
+                shop(4L, 2L, 120.001, 30.000, 40),
+                shop(5L, 1L, 121.000, 30.000, 40)
+        ), 1000);
+
+        Map<Long, Double> result = index.search(1L, 120.0, 30.0, 5000, 0, 10);
+
+        assertThat(result.keySet()).containsExactly(1L, 2L, 3L);
+        assertThat(result.get(1L)).isEqualTo(0.0);
+        assertThat(result.get(2L)).isCloseTo(haversine(120.0, 30.0, 120.01, 30.0), offset(1e-6));
+    }
+
+    @Test
+    void searchPagesWithFromAndCount() {
+        index = newIndex(shopMapper, Arrays.asList(
+                shop(1L, 1L, 120.000, 30.000, 40),
+                shop(2L, 1L, 120.001, 30.000, 40),
+                shop(3L, 1L, 120.002, 30.000, 40),
+                shop(4L, 1L, 120.003, 30.000, 40)
+        ), 1000);
+
+        assertThat(index.search(1L, 120.0, 30.0, 5000, 1, 2).keySet()).containsExactly(2L, 3L);
+        assertThat(index.search(1L, 120.0, 30.0, 5000, 4, 2)).isEmpty();
+    }
+
+    @Test
+    void searchRejectsOutOfRangePages() {
+        index = newIndex(shopMapper, Collections.singletonList(shop(1L, 1L, 120.000, 30.000, 40)), 1000);
+
+        assertThat(index.search(1L, 120.0, 30.0, 5000, -5, 5)).isEmpty();
+        assertThat(index.search(1L, 120.0, 30.0, 5000, 0, 0)).isEmpty();
+        assertThat(index.search(1L, 120.0, 30.0, 5000, Integer.MAX_VALUE - 1, 5)).isEmpty();
+//        很大的页码只按找到的店铺数分配空间
+        assertThat(index.search(1L, 120.0, 30.0, 5000, 0, 500_000_000).keySet()).containsExactly(1L);
+    }
+
+    @Test
+    void searchPrefersHigherScoreAtSameDistance() {
+        index = newIndex(shopMapper, Arrays.asList(
+                shop(1L, 1L, 120.001, 30.000, 30),
+                shop(2L, 1L, 119.999, 30.000, 50)
+        ), 1000);
+
+        assertThat(index.search(1L, 120.0, 30.0, 5000, 0, 1).keySet()).containsExactly(2L);
+    }
+
+    @Test
+    void searchMatchesBruteForceAcrossCells() {
+        Random random = new Random(42);
+        List<Shop> shops = new ArrayList<>();
+        for (long id = 1; id <= 5000; id++) {
+            shops.add(shop(id, 1 + random.nextInt(3), 120 + random.nextDouble() * 0.3, 30 + random.nextDouble() * 0.3, random.nextInt(50)));
+        }
+        index = newIndex(shopMapper, shops, 500);
+
+        for (int i = 0; i < 50; i++) {
+            long typeId = 1 + random.nextInt(3);
+            double x = 120 + random.nextDouble() * 0.3;
+            double y = 30 + random.nextDouble() * 0.3;
+            double radius = 500 + random.nextDouble() * 5000;
+            assertThat(index.search(typeId, x, y, radius, 0, 20).keySet())
+                    .containsExactlyElementsOf(bruteForce(shops, typeId, x, y, radius, 20));
+        }
+    }
+
+    @Test
+    void overlayChangesAreVisibleBeforeCompact() {
+        index = newIndex(shopMapper, Arrays.asList(
+                shop(1L, 1L, 120.000, 30.000, 40),
+                shop(2L, 1L, 120.010, 30.000, 40)
+        ), 1000);
+
+//        店铺1移走，店铺2改为其他类型，新增店铺3
+        change(index, shop(1L, 1L, 121.000, 30.000, 40));
+        change(index, shop(2L, 2L, 120.010, 30.000, 40));
+        change(index, shop(3L, 1L, 120.005, 30.000, 40));
+
+        assertThat(index.search(1L, 120.0, 30.0, 5000, 0, 10).keySet()).containsExactly(3L);
+        assertThat(index.search(2L, 120.0, 30.0, 5000, 0, 10).keySet()).containsExactly(2L);
+        assertThat(index.getStats().get("overlay")).isEqualTo(3);
+    }
+
+    @Test
+    void changeWithoutLocationRemovesShop() {
+        index = newIndex(shopMapper, Collections.singletonList(shop(1L, 1L, 120.000, 30.000, 40)), 1000);
+
+        change(index, new Shop().setId(1L).setTypeId(1L).setScore(40));
+
+        assertThat(index.search(1L, 120.0, 30.0, 5000, 0, 10)).isEmpty();
+    }
+
+    @Test
+    void compactMergesOverlayIntoSnapshot() {
+        index = newIndex(shopMapper, Arrays.asList(
+                shop(1L, 1L, 120.000, 30.000, 40),
+                shop(2L, 1L, 120.010, 30.000, 40)
+        ), 1000);
+        change(index, shop(1L, 1L, 121.000, 30.000, 40));
+        change(index, new Shop().setId(2L).setTypeId(1L).setScore(40));
+        change(index, shop(3L, 1L, 120.005, 30.000, 40));
+        Map<Long, Double> before = index.search(1L, 120.0, 30.0, 5000, 0, 10);
+
+        ReflectionTestUtils.invokeMethod(index, "compact");
+
+        assertThat(index.getStats().get("overlay")).isEqualTo(0);
+        assertThat(index.getStats().get("shops")).isEqualTo(2);
+        assertThat(index.search(1L, 120.0, 30.0, 5000, 0, 10)).isEqualTo(before);
+        assertThat(index.search(1L, 121.0, 30.0, 5000, 0, 10).keySet()).containsExactly(1L);
+    }
+
+    @Test
+    void reloadDropsOverlayEntriesCoveredByTheNewSnapshot() {
+        index = newIndex(shopMapper, Collections.singletonList(shop(1L, 1L, 120.000, 30.000, 40)), 1000);
+        change(index, shop(2L, 1L, 120.005, 30.000, 40));
+
+//        数据库中已经有店铺2
+        stubShops(shopMapper, Arrays.asList(
+                shop(1L, 1L, 120.000, 30.000, 40),
+                shop(2L, 1L, 120.005, 30.000, 40)
+        ));
+        ReflectionTestUtils.invokeMethod(index, "reload");
+
+        assertThat(index.getStats().get("overlay")).isEqualTo(0);
+        assertThat(index.getStats().get("shops")).isEqualTo(2);
+        assertThat(index.search(1L, 120.0, 30.0, 5000, 0, 10).keySet()).containsExactly(1L, 2L);
+    }
+
+    @Test
+    void reloadReadsAllPages() {
+        List<Shop> shops = new ArrayList<>();
+        for (long id = 1; id <= 2500; id++) {
+            shops.add(shop(id, 1L, 120 + id * 1e-5, 30.0, 40));
+        }
+        index = newIndex(shopMapper, shops, 1000);
+
+        assertThat(index.getStats().get("shops")).isEqualTo(2500);
+        assertThat(index.search(1L, 120.0, 30.0, 100000, 0, 3000)).hasSize(2500);
+    }
+
+    /**
+     * 创建开启状态的索引，Redis相关依赖用mock代替，店铺数据按每页1000条分页返回
+     */
+    static ShopGridIndex newIndex(ShopMapper shopMapper, List<Shop> shops, double cellSizeMeters) {
+        stubShops(shopMapper, shops);
+        ShopGridIndex index = new ShopGridIndex();
+        ReflectionTestUtils.setField(index, "shopMapper", shopMapper);
+        ReflectionTestUtils.setField(index, "redisMessageListenerContainer", mock(RedisMessageListenerContainer.class));
+        ReflectionTestUtils.setField(index, "enabled", true);
+        ReflectionTestUtils.setField(index, "cellSizeMeters", cellSizeMeters);
+        ReflectionTestUtils.setField(index, "compactThreshold", Integer.MAX_VALUE);
+        ReflectionTestUtils.setField(index, "reloadIntervalMinutes", 0L);
+        ReflectionTestUtils.invokeMethod(index, "init");
+        return index;
+    }
+
+    @SuppressWarnings("unchecked")
+    static void stubShops(ShopMapper shopMapper, List<Shop> shops) {
+        List<List<Shop>> pages = new ArrayList<>();
+        for (int i = 0; i < shops.size(); i += 1000) {
+            pages.add(new ArrayList<>(shops.subList(i, Math.min(shops.size(), i + 1000))));
+        }
+        pages.add(Collections.emptyList());
+        when(shopMapper.selectList(any())).thenReturn(pages.get(0), pages.subList(1, pages.size()).toArray(new List[0]));
+    }
+
+    static Shop shop(long id, long typeId, double x, double y, int score) {
+        return new Shop().setId(id).setTypeId(typeId).setX(x).setY(y).setScore(score);
+    }
+
+//    与ShopGridIndex.publish发送的消息格式一致
+    private static void change(ShopGridIndex index, Shop shop) {
+        String body = shop.getId() + "," + shop.getTypeId() + "," + shop.getX() + "," + shop.getY() + "," + shop.getScore();
+        ReflectionTestUtils.invokeMethod(index, "onChange",
+                new DefaultMessage("shop:grid".getBytes(StandardCharsets.UTF_8), body.getBytes(StandardCharsets.UTF_8)), null);
+    }
+
+    private static List<Long> bruteForce(List<Shop> shops, long typeId, double x, double y, double radius, int limit) {
+        Map<Long, Double> distances = new LinkedHashMap<>();
+        Map<Long, Integer> scores = new LinkedHashMap<>();
+        for (Shop shop : shops) {
+            double distance = haversine(x, y, shop.getX(), shop.getY());
+            if (shop.getTypeId() == typeId && distance <= radius) {
+                distances.put(shop.getId(), distance);
+                scores.put(shop.getId(), shop.getScore());
+            }
+        }
+        List<Long> ids = new ArrayList<>(distances.keySet());
+        ids.sort(Comparator.<Long>comparingDouble(distances::get).thenComparing(id -> -scores.get(id)));
+        return ids.subList(0, Math.min(limit, ids.size()));
+    }
+
+    private static double haversine(double x1, double y1, double x2, double y2) {
+        double lat1 = Math.toRadians(y1);
+        double lat2 = Math.toRadians(y2);
+        double u = Math.sin((lat2 - lat1) / 2);
+        double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.sqrt(u * u + Math.cos(lat1) * Math.cos(lat2) * v * v));
+    }
+}